@@ -55,6 +55,35 @@ public class DownloadUtils {
         }
     }
 
+    /**
+     * Listener of the response headers.
+     */
+    public interface ResponseListener {
+        /**
+         * Gets called after response headers are received and before
+         * content is downloaded.
+         *
+         * @param contentLength 'Content-Length' header value or -1 if unknown.
+         * @throws IOException to abort download, it's passed to the caller as is.
+         */
+        void started(long contentLength) throws IOException;
+    }
+
+    /**
+     * Get HTTP status of the failed download.
+     *
+     * @param e Download error.
+     * @return HTTP response code or -1 if error is not caused by
+     *         HTTP status.
+     */
+    public static int getStatusCode(@NotNull Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpRequests.HttpStatusException)
+                return ((HttpRequests.HttpStatusException)cause).getStatusCode();
+        }
+        return -1;
+    }
+
     public static void download(@NotNull String url,
                                 @NotNull final OutputStream output,
                                 @Nullable final ProgressIndicator indicator,
@@ -62,6 +91,59 @@ public class DownloadUtils {
                                 final boolean showDownloadingFile,
                                 @Nullable final String errorMessage,
                                 @Nullable final HttpRequests.RequestProcessor<Void> extraProcessor) throws IOException {
+        download(url, output, indicator, addProgress, showDownloadingFile,
+            errorMessage, extraProcessor, null);
+    }
+
+    /**
+     * Download content of the given URL.
+     *
+     * @param url URL to download.
+     * @param output Stream to write content to.
+     * @param indicator IDE progress indicator.
+     * @param addProgress Show content size in progress UI.
+     * @param showDownloadingFile Show downloading filename in progress UI.
+     * @param errorMessage Prefix of the error message.
+     * @param extraProcessor Processor to call after content is downloaded.
+     * @param tuner Connection tuner, for example to set request headers.
+     * @throws IOException on network I/O errors.
+     */
+    public static void download(@NotNull final String url,
+                                @NotNull final OutputStream output,
+                                @Nullable final ProgressIndicator indicator,
+                                final boolean addProgress,
+                                final boolean showDownloadingFile,
+                                @Nullable final String errorMessage,
+                                @Nullable final HttpRequests.RequestProcessor<Void> extraProcessor,
+                                @Nullable HttpRequests.ConnectionTuner tuner) throws IOException {
+        download(url, output, indicator, addProgress, showDownloadingFile,
+            errorMessage, extraProcessor, tuner, null);
+    }
+
+    /**
+     * Download content of the given URL.
+     *
+     * @param url URL to download.
+     * @param output Stream to write content to.
+     * @param indicator IDE progress indicator.
+     * @param addProgress Show content size in progress UI.
+     * @param showDownloadingFile Show downloading filename in progress UI.
+     * @param errorMessage Prefix of the error message.
+     * @param extraProcessor Processor to call after content is downloaded.
+     * @param tuner Connection tuner, for example to set request headers.
+     * @param listener Listener to call before content is downloaded,
+     *                 for example to check content size.
+     * @throws IOException on network I/O errors.
+     */
+    public static void download(@NotNull final String url,
+                                @NotNull final OutputStream output,
+                                @Nullable final ProgressIndicator indicator,
+                                final boolean addProgress,
+                                final boolean showDownloadingFile,
+                                @Nullable final String errorMessage,
+                                @Nullable final HttpRequests.RequestProcessor<Void> extraProcessor,
+                                @Nullable HttpRequests.ConnectionTuner tuner,
+                                @Nullable final ResponseListener listener) throws IOException {
 
         final String progress_text = indicator != null ? indicator.getText() : null;
 
@@ -76,10 +158,17 @@ public class DownloadUtils {
             }
         }
 
-        HttpRequests.request(url).productNameAsUserAgent()
-            .connect(new HttpRequests.RequestProcessor<Void>() {
+        HttpRequests.RequestBuilder builder = HttpRequests.request(url)
+            .productNameAsUserAgent();
+        if (tuner != null)
+            builder.tuner(tuner);
+
+        builder.connect(new HttpRequests.RequestProcessor<Void>() {
                 @Override
                 public Void process(@NotNull HttpRequests.Request request) throws IOException {
+                    if (listener != null)
+                        listener.started(request.getConnection().getContentLengthLong());
+
                     try {
                         int sz = request.getConnection().getContentLength();
                         if (addProgress)
@@ -92,9 +181,15 @@ public class DownloadUtils {
                         LOG.debug(e);
                         HttpURLConnection conn = (HttpURLConnection)request.getConnection();
 
+                        int code = conn.getResponseCode();
                         String msg = (errorMessage == null || errorMessage.isEmpty() ? "" : errorMessage + ": ") +
-                            conn.getResponseCode() + " " +
+                            code + " " +
                             conn.getResponseMessage();
+                        if (code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                            IOException error = new HttpRequests.HttpStatusException(msg, code, url);
+                            error.initCause(e);
+                            throw error;
+                        }
                         throw new IOException(msg, e);
                     }
                     return null;
@@ -127,7 +222,33 @@ public class DownloadUtils {
                                       final boolean addProgress,
                                       @Nullable final String errorMessage,
                                       @Nullable final HttpRequests.RequestProcessor<Void> extraProcessor) throws IOException {
-        final FileOutputStream out = new FileOutputStream(outFile);
-        download(url, out, indicator, addProgress, errorMessage, extraProcessor);
+        downloadToFile(url, outFile, indicator, addProgress, errorMessage,
+            extraProcessor, null);
+    }
+
+    /**
+     * Download content of the given URL to the file.
+     *
+     * @param url URL to download.
+     * @param outFile File to write content to.
+     * @param indicator IDE progress indicator.
+     * @param addProgress Show content size in progress UI.
+     * @param errorMessage Prefix of the error message.
+     * @param extraProcessor Processor to call after content is downloaded.
+     * @param listener Listener to call before content is downloaded,
+     *                 for example to check free disk space.
+     * @throws IOException on network I/O errors.
+     */
+    public static void downloadToFile(@NotNull String url,
+                                      @NotNull File outFile,
+                                      @Nullable final ProgressIndicator indicator,
+                                      final boolean addProgress,
+                                      @Nullable final String errorMessage,
+                                      @Nullable final HttpRequests.RequestProcessor<Void> extraProcessor,
+                                      @Nullable ResponseListener listener) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(outFile)) {
+            download(url, out, indicator, addProgress, false, errorMessage,
+                extraProcessor, null, listener);
+        }
     }
 }
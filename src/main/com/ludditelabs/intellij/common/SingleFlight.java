@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common;
+
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.*;
+
+/**
+ * Coalesce concurrent calls with the same key into one call.
+ *
+ * The first caller (leader) executes the call in its own thread, other
+ * callers with the same key wait for it and get the same result or error.
+ * Key is released as soon as the call is finished, so next calls are
+ * executed again.
+ *
+ * If leader is canceled then one of the waiting callers executes
+ * the call instead.
+ *
+ * @param <K> Key type.
+ * @param <V> Result type.
+ */
+public class SingleFlight<K, V> {
+    /**
+     * Coalesced call.
+     *
+     * @param <V> Result type.
+     */
+    public interface Call<V> {
+        V call() throws IOException;
+    }
+
+    // How often waiting callers check their progress indicators.
+    private static final long POLL_INTERVAL_MS = 100;
+
+    @NotNull private final ConcurrentMap<K, CompletableFuture<V>> m_calls =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Return true if there is a call in flight for the given key.
+     */
+    public boolean isInFlight(@NotNull K key) {
+        return m_calls.containsKey(key);
+    }
+
+    /**
+     * Execute call or wait for the same call in flight.
+     *
+     * @param key Call key.
+     * @param call Call to execute if there is no call with the same key.
+     * @param indicator Progress indicator to check for cancellation while
+     *                  waiting, or null.
+     * @return Call result.
+     * @throws IOException if call fails.
+     */
+    public V execute(@NotNull K key, @NotNull Call<V> call,
+                     @Nullable ProgressIndicator indicator) throws IOException {
+        while (true) {
+            CompletableFuture<V> future = new CompletableFuture<>();
+            CompletableFuture<V> existing = m_calls.putIfAbsent(key, future);
+
+            if (existing == null)
+                return lead(key, future, call);
+
+            try {
+                return await(existing, indicator);
+            }
+            catch (ProcessCanceledException e) {
+                // Leader is canceled, but we are not - try again.
+                if (indicator != null)
+                    indicator.checkCanceled();
+            }
+        }
+    }
+
+    private V lead(@NotNull K key, @NotNull CompletableFuture<V> future,
+                   @NotNull Call<V> call) throws IOException {
+        try {
+            V result = call.call();
+            future.complete(result);
+            return result;
+        }
+        catch (IOException | RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            m_calls.remove(key, future);
+        }
+    }
+
+    private V await(@NotNull CompletableFuture<V> future,
+                    @Nullable ProgressIndicator indicator) throws IOException {
+        try {
+            if (indicator == null)
+                return future.get();
+
+            while (true) {
+                indicator.checkCanceled();
+                try {
+                    return future.get(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException e) {
+                    // Continue waiting.
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -18,7 +18,8 @@ package com.ludditelabs.intellij.common;
 
 import com.intellij.execution.ExecutionException;
 import com.intellij.execution.configurations.GeneralCommandLine;
-import com.intellij.execution.process.CapturingProcessHandler;
+import com.intellij.execution.process.CapturingProcessAdapter;
+import com.intellij.execution.process.KillableProcessHandler;
 import com.intellij.execution.process.ProcessOutput;
 import com.intellij.ide.plugins.IdeaPluginDescriptor;
 import com.intellij.ide.plugins.PluginManager;
@@ -26,7 +27,6 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.extensions.PluginId;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.vfs.CharsetToolkit;
-import com.intellij.util.text.VersionComparatorUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -38,6 +38,8 @@ import java.util.*;
 
 public class Utils {
     private static final Logger LOG = Logger.getInstance("com.ludditelabs.common.Utils");
+    private static final int DEFAULT_PROCESS_TIMEOUT = 60 * 1000;
+    private static final long KILL_DELAY = 2000;
 
     @NotNull
     public static String getPluginVersion(String id) {
@@ -46,19 +48,17 @@ public class Utils {
     }
 
     public static void sortVersions(@NotNull final List<String> versions) {
-        Collections.sort(versions, new Comparator<String>() {
-            @Override
-            public int compare(String o1, String o2) {
-                return VersionComparatorUtil.compare(o1, o2);
-            }
-        });
+        // Parse each version once instead of on every comparison.
+        List<String> sorted = new VersionIndex(versions).getVersions();
+        for (int i = 0; i < sorted.size(); ++i)
+            versions.set(i, sorted.get(i));
     }
 
-    // TODO: there must be more optimal way to do that.
     /**
      * Find version string closest to the given one.
      *
-     * This functions searches for version <= given one.
+     * This functions searches for version <= given one using binary search.
+     * For repeated lookups in the same list use {@link VersionIndex}.
      *
      * @param versions List of <em>sorted</em> version strings.
      * @param version Reference version.
@@ -69,23 +69,20 @@ public class Utils {
         @NotNull final List<String> versions,
         @NotNull final String version) {
 
-        int i;
-        int cmp;
-        int sz = versions.size();
-
-        for (i = 0; i < sz; i++) {
-            cmp = VersionComparatorUtil.compare(version, versions.get(i));
-            if (cmp == 0) {
-                return versions.get(i);
-            }
-            else if (cmp < 0) {
-                return i == 0 ? null : versions.get(i - 1);
-            }
+        VersionIndex.Key key = VersionIndex.parse(version);
+        int lo = 0;
+        int hi = versions.size();
+
+        // Find first version > given one.
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (VersionIndex.compare(VersionIndex.parse(versions.get(mid)), key) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid;
         }
 
-        if (i > 0)
-            return versions.get(sz - 1);
-        return null;
+        return lo == 0 ? null : versions.get(lo - 1);
     }
 
     /**
@@ -102,15 +99,41 @@ public class Utils {
     }
 
     public static ProcessOutput runProcess(String executable, String... parameters) {
+        return runProcess(DEFAULT_PROCESS_TIMEOUT, executable, parameters);
+    }
+
+    /**
+     * Run process and capture its output.
+     *
+     * If process runs longer than timeout then its process tree is
+     * terminated softly and killed if it's still alive after a short
+     * delay. Output of such process has {@link ProcessOutput#isTimeout()}
+     * flag.
+     *
+     * @param timeout Timeout in milliseconds.
+     * @param executable Path to executable.
+     * @param parameters Process parameters.
+     * @return Process output or null if process can't be started.
+     */
+    public static ProcessOutput runProcess(int timeout, String executable, String... parameters) {
         LOG.debug("Run process:", executable);
 
         try {
             GeneralCommandLine cmd = new GeneralCommandLine();
             cmd.setExePath(executable);
             cmd.addParameters(parameters);
-            CapturingProcessHandler handler = new CapturingProcessHandler(
+            KillableProcessHandler handler = new KillableProcessHandler(
                 cmd.withCharset(CharsetToolkit.getDefaultSystemCharset()));
-            return handler.runProcess(60 * 1000);
+            handler.setShouldDestroyProcessRecursively(true);
+            CapturingProcessAdapter adapter = new CapturingProcessAdapter();
+            handler.addProcessListener(adapter);
+            handler.startNotify();
+
+            if (!handler.waitFor(timeout)) {
+                adapter.getOutput().setTimeout();
+                terminate(handler);
+            }
+            return adapter.getOutput();
         }
         catch (ExecutionException e) {
             LOG.info(e);
@@ -119,6 +142,17 @@ public class Utils {
         return null;
     }
 
+    // Terminate process tree softly (SIGINT on Unix) and kill it if it's
+    // still running after a delay.
+    private static void terminate(@NotNull KillableProcessHandler handler) {
+        handler.destroyProcess();
+        if (!handler.waitFor(KILL_DELAY) && handler.canKillProcess()) {
+            LOG.debug("Killing process: ", handler.getCommandLine());
+            handler.killProcess();
+            handler.waitFor(KILL_DELAY);
+        }
+    }
+
     public static ProcessOutput runCheckedProcess(String executable, String... parameters) {
         ProcessOutput out = runProcess(executable, parameters);
         if (out != null) {
@@ -126,6 +160,10 @@ public class Utils {
                 LOG.info("Run process: CANCELED.");
                 return null;
             }
+            else if (out.isTimeout()) {
+                LOG.info("Run process: TIMEOUT.");
+                return null;
+            }
             else if (!out.checkSuccess(LOG)) {
                 return null;
             }
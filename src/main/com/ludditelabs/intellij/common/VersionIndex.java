@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common;
+
+import com.intellij.util.text.VersionComparatorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Sorted index of version strings.
+ *
+ * Versions are parsed once into compact {@link Key keys}, so lookups
+ * don't re-tokenize strings on each comparison. Floor, ceiling and range
+ * queries use binary search.
+ *
+ * Ordering is the same as {@link VersionComparatorUtil#compare(String, String)}:
+ * plain numeric versions like {@code 1.2.3} are compared by parsed
+ * numbers, all other cases fall back to {@link VersionComparatorUtil}.
+ */
+public class VersionIndex {
+    // Max number of digits in a part to fit into int.
+    private static final int MAX_PART_DIGITS = 9;
+
+    /**
+     * Parsed version string.
+     */
+    public static final class Key implements Comparable<Key> {
+        @NotNull private final String m_version;
+        // Numeric parts or null if version is not plain numeric.
+        @Nullable private final int[] m_parts;
+
+        private Key(@NotNull String version, @Nullable int[] parts) {
+            m_version = version;
+            m_parts = parts;
+        }
+
+        /** Original version string. */
+        @NotNull
+        public String getVersion() {
+            return m_version;
+        }
+
+        @Override
+        public int compareTo(@NotNull Key other) {
+            return compare(this, other);
+        }
+
+        @Override
+        public String toString() {
+            return m_version;
+        }
+    }
+
+    @NotNull private final Key[] m_keys;
+
+    /**
+     * Construct index.
+     *
+     * @param versions Version strings in any order.
+     */
+    public VersionIndex(@NotNull Collection<String> versions) {
+        m_keys = new Key[versions.size()];
+        int i = 0;
+        for (String version : versions)
+            m_keys[i++] = parse(version);
+        Arrays.sort(m_keys);
+    }
+
+    /**
+     * Parse version string.
+     *
+     * Plain numeric versions (dot separated numbers without leading zeros)
+     * are parsed to numbers, other strings are kept as is.
+     *
+     * @param version Version string.
+     * @return Version key.
+     */
+    @NotNull
+    public static Key parse(@NotNull String version) {
+        int len = version.length();
+        if (len == 0)
+            return new Key(version, null);
+
+        // Count parts and validate format in one pass.
+        int count = 1;
+        int digits = 0;
+        for (int i = 0; i < len; ++i) {
+            char c = version.charAt(i);
+            if (c == '.') {
+                if (digits == 0)
+                    return new Key(version, null);
+                count++;
+                digits = 0;
+            }
+            else if (c >= '0' && c <= '9') {
+                // Leading zeros and huge numbers are left to VersionComparatorUtil.
+                if ((digits == 1 && version.charAt(i - 1) == '0')
+                    || ++digits > MAX_PART_DIGITS) {
+                    return new Key(version, null);
+                }
+            }
+            else {
+                return new Key(version, null);
+            }
+        }
+        if (digits == 0)
+            return new Key(version, null);
+
+        int[] parts = new int[count];
+        int value = 0;
+        int idx = 0;
+        for (int i = 0; i < len; ++i) {
+            char c = version.charAt(i);
+            if (c == '.') {
+                parts[idx++] = value;
+                value = 0;
+            }
+            else {
+                value = value * 10 + (c - '0');
+            }
+        }
+        parts[idx] = value;
+        return new Key(version, parts);
+    }
+
+    /**
+     * Compare parsed versions.
+     *
+     * @return Negative, zero or positive number like
+     *         {@link VersionComparatorUtil#compare(String, String)}.
+     */
+    public static int compare(@NotNull Key v1, @NotNull Key v2) {
+        int[] p1 = v1.m_parts;
+        int[] p2 = v2.m_parts;
+
+        if (p1 != null && p2 != null) {
+            int sz = Math.min(p1.length, p2.length);
+            for (int i = 0; i < sz; ++i) {
+                if (p1[i] != p2[i])
+                    return p1[i] < p2[i] ? -1 : 1;
+            }
+            // Same numbers without leading zeros means same strings.
+            if (p1.length == p2.length)
+                return 0;
+        }
+
+        // Trailing parts and non-numeric versions have special rules.
+        return VersionComparatorUtil.compare(v1.m_version, v2.m_version);
+    }
+
+    /**
+     * Compare version strings.
+     *
+     * @see #compare(Key, Key)
+     */
+    public static int compare(@NotNull String v1, @NotNull String v2) {
+        return compare(parse(v1), parse(v2));
+    }
+
+    // Index of the first key >= given one (or > if 'upper' is set).
+    private int search(@NotNull Key key, boolean upper) {
+        int lo = 0;
+        int hi = m_keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(m_keys[mid], key);
+            if (cmp < 0 || (upper && cmp == 0))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /** Number of versions in the index. */
+    public int size() {
+        return m_keys.length;
+    }
+
+    /** Sorted versions. */
+    @NotNull
+    public List<String> getVersions() {
+        List<String> result = new ArrayList<>(m_keys.length);
+        for (Key key : m_keys)
+            result.add(key.m_version);
+        return result;
+    }
+
+    /**
+     * Find the greatest version &lt;= given one.
+     *
+     * @param version Reference version.
+     * @return Version string or null.
+     */
+    @Nullable
+    public String floor(@NotNull String version) {
+        int idx = search(parse(version), true);
+        return idx == 0 ? null : m_keys[idx - 1].m_version;
+    }
+
+    /**
+     * Find the least version &gt;= given one.
+     *
+     * @param version Reference version.
+     * @return Version string or null.
+     */
+    @Nullable
+    public String ceiling(@NotNull String version) {
+        int idx = search(parse(version), false);
+        return idx == m_keys.length ? null : m_keys[idx].m_version;
+    }
+
+    /**
+     * Find versions in the given range.
+     *
+     * @param from Lower bound (inclusive) or null.
+     * @param to Upper bound (inclusive) or null.
+     * @return Sorted versions.
+     */
+    @NotNull
+    public List<String> range(@Nullable String from, @Nullable String to) {
+        int start = from == null ? 0 : search(parse(from), false);
+        int end = to == null ? m_keys.length : search(parse(to), true);
+
+        List<String> result = new ArrayList<>(Math.max(end - start, 0));
+        for (int i = start; i < end; ++i)
+            result.add(m_keys[i].m_version);
+        return result;
+    }
+}
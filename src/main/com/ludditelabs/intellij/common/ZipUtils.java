@@ -18,17 +18,25 @@ package com.ludditelabs.intellij.common;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.Condition;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Path;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -39,6 +47,36 @@ import java.util.zip.ZipFile;
 public class ZipUtils {
     private static final Logger LOG = Logger.getInstance(ZipUtils.class);
 
+    /**
+     * Archive content statistics.
+     *
+     * @see ZipUtils#getStats(File, boolean, Condition)
+     */
+    public static class ArchiveStats {
+        /** Number of entries to extract. */
+        public int entries = 0;
+        /** Total uncompressed size of entries to extract. */
+        public long totalSize = 0;
+        /** Uncompressed size of the largest entry to extract. */
+        public long largestSize = 0;
+    }
+
+    /**
+     * Extraction progress listener.
+     *
+     * @see ZipUtils#unzipResumable(File, File, ProgressIndicator, boolean, Condition, int, ProgressListener)
+     */
+    public interface ProgressListener {
+        /**
+         * Gets called after each extracted (or skipped) entry.
+         *
+         * @param count Number of processed entries.
+         * @param total Total number of entries to extract.
+         * @throws IOException to abort extraction.
+         */
+        void processed(int count, int total) throws IOException;
+    }
+
     /**
      * Helper method to cleanup entry path.
      *
@@ -53,6 +91,62 @@ public class ZipUtils {
         return StringUtil.trimEnd(name, "/");
     }
 
+    /**
+     * Helper method to find single root directory of the archive.
+     *
+     * @param zipFile Zip archive.
+     * @return Root directory path with trailing slash or null if archive
+     *         has more than one top level entry.
+     */
+    @Nullable
+    private static String getSingleRoot(@NotNull ZipFile zipFile) {
+        String root = null;
+        boolean has_children = false;
+
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            String path = getPath(entries.nextElement());
+            if (path.isEmpty())
+                continue;
+
+            int pos = path.indexOf('/');
+            String top = pos == -1 ? path : path.substring(0, pos);
+            if (root == null)
+                root = top;
+            else if (!root.equals(top))
+                return null;
+            has_children |= pos != -1;
+        }
+
+        // Single file is not a directory to unwrap.
+        return has_children ? root + "/" : null;
+    }
+
+    /**
+     * Helper method to get entry path relative to the destination directory.
+     *
+     * @param entry Zip entry.
+     * @param root Single root directory to strip or null.
+     * @param filter Entries filter or null.
+     * @return Relative path or null if entry must be skipped.
+     */
+    @Nullable
+    private static String getRelativePath(@NotNull ZipEntry entry,
+                                          @Nullable String root,
+                                          @Nullable Condition<String> filter) {
+        String path = getPath(entry);
+
+        if (root != null)
+            path = StringUtil.trimStart(path + "/", root);
+        path = StringUtil.trimEnd(path, "/");
+        if (path.isEmpty())
+            return null;
+
+        if (filter != null && !filter.value(path))
+            return null;
+        return path;
+    }
+
     /**
      * Helper method to extract content from the zip entry.
      *
@@ -60,6 +154,7 @@ public class ZipUtils {
      * If it's a file then copy zip file content to destination dir.
      *
      * @param entry Zip entry.
+     * @param entryPath Entry path relative to the destination directory.
      * @param entryStream Zip entry stream.
      * @param destDir Destination directory.
      * @param indicator IDE progress indicator.
@@ -67,12 +162,12 @@ public class ZipUtils {
      * @throws IOException on I/O errors.
      */
     private static void unzipEntry(@NotNull ZipEntry entry,
+                                   @NotNull String entryPath,
                                    @NotNull InputStream entryStream,
                                    @NotNull File destDir,
                                    @Nullable ProgressIndicator indicator,
                                    boolean showFile) throws IOException {
-        String entry_path = getPath(entry);
-        File child = new File(destDir, entry_path);
+        File child = new File(destDir, entryPath);
         File dir = entry.isDirectory() ? child : child.getParentFile();
 
         // Make sure all parent dirs are exist.
@@ -81,9 +176,9 @@ public class ZipUtils {
 
         // Copy content to file.
         if (!entry.isDirectory()) {
-            LOG.debug("Extracting " + entry_path);
+            LOG.debug("Extracting " + entryPath);
             if (indicator != null && showFile)
-                indicator.setText("Extracting " + entry_path + "...");
+                indicator.setText("Extracting " + entryPath + "...");
 
             try (FileOutputStream out = new FileOutputStream(child)) {
                 FileUtil.copy(entryStream, out);
@@ -92,26 +187,130 @@ public class ZipUtils {
     }
 
     /**
-     * Helper method to unwrap single directory.
+     * Helper method to check if entry is already extracted by the
+     * interrupted extraction.
      *
-     * If <em>dir</em> contains only single entry and it's a directory then
-     * move its content out to the <em>dir</em>.
+     * File may be truncated or partially written, so its content is
+     * compared too (see {@link #isSameContent(File, ZipEntry)}).
+     */
+    private static boolean isExtracted(@NotNull File file,
+                                       @NotNull ZipEntry entry) throws IOException {
+        if (entry.isDirectory())
+            return file.isDirectory();
+        return isSameContent(file, entry);
+    }
+
+    // Extraction loop shared by the unzip methods.
+    private static void doUnzip(@NotNull File zipFile,
+                                @NotNull File destDir,
+                                @Nullable ProgressIndicator indicator,
+                                boolean unwrapSingleDir,
+                                boolean showFile,
+                                @Nullable Condition<String> filter,
+                                int skipEntries,
+                                @Nullable ProgressListener listener) throws IOException {
+        try (ZipFile zip_file = new ZipFile(zipFile, ZipFile.OPEN_READ)) {
+            String root = unwrapSingleDir ? getSingleRoot(zip_file) : null;
+            int total = listener != null || indicator != null
+                ? countEntries(zip_file, root, filter) : 0;
+            int count = 0;
+
+            Enumeration<? extends ZipEntry> entries = zip_file.entries();
+            while (entries.hasMoreElements()) {
+                if (indicator != null)
+                    indicator.checkCanceled();
+
+                ZipEntry entry = entries.nextElement();
+                String path = getRelativePath(entry, root, filter);
+                if (path == null)
+                    continue;
+
+                if (count >= skipEntries || !isExtracted(new File(destDir, path), entry)) {
+                    try (InputStream stream = zip_file.getInputStream(entry)) {
+                        unzipEntry(entry, path, stream, destDir, indicator, showFile);
+                    }
+                }
+
+                count++;
+                if (indicator != null && total > 0)
+                    indicator.setFraction((double)count / total);
+                if (listener != null)
+                    listener.processed(count, total);
+            }
+        }
+
+        // Make sure destination exists even if everything is filtered out.
+        if (!destDir.exists() && !destDir.mkdirs())
+            throw new IOException("Unable to create directory: '" + destDir + "'!");
+    }
+
+    // Count entries which pass the filter.
+    private static int countEntries(@NotNull ZipFile zipFile,
+                                    @Nullable String root,
+                                    @Nullable Condition<String> filter) {
+        int count = 0;
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            if (getRelativePath(entries.nextElement(), root, filter) != null)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Unzip archive to the given directory with updating progress indicator.
      *
-     * The entry will be deleted.
+     * If <em>unwrapSingleDir</em> is set and archive has only single top
+     * level directory then its content is extracted directly to the
+     * <em>destDir</em>. Entry paths passed to the <em>filter</em> are
+     * relative to the <em>destDir</em>, i.e. without unwrapped directory.
      *
-     * If <em>dir</em> has more than one entry then nothing wil happen.
+     * @param zipFile Archive to unzip.
+     * @param destDir Destination directory.
+     * @param indicator IDE progress indicator.
+     * @param dropDest Delete destination before unzip if exists.
+     * @param unwrapSingleDir Unwrap content of a single directory.
+     * @param showFile Show filename in progress UI.
+     * @param filter Entries filter, null to extract all entries.
+     * @throws IOException on I/O errors.
+     */
+    public static void unzip(@NotNull File zipFile,
+                             @NotNull File destDir,
+                             @Nullable ProgressIndicator indicator,
+                             boolean dropDest,
+                             boolean unwrapSingleDir,
+                             boolean showFile,
+                             @Nullable Condition<String> filter) throws IOException {
+        if (dropDest && destDir.exists())
+            FileUtil.delete(destDir);
+        doUnzip(zipFile, destDir, indicator, unwrapSingleDir, showFile, filter, 0, null);
+    }
+
+    /**
+     * Continue interrupted extraction of the archive.
+     *
+     * First <em>skipEntries</em> entries are extracted only if they are
+     * missing or have wrong size in the <em>destDir</em>; the rest are
+     * always extracted. Content of a single directory is unwrapped.
      *
-     * @param dir Directory nested directory.
+     * @param zipFile Archive to unzip.
+     * @param destDir Destination directory.
+     * @param indicator IDE progress indicator.
+     * @param showFile Show filename in progress UI.
+     * @param filter Entries filter, null to extract all entries.
+     * @param skipEntries Number of entries extracted before interruption.
+     * @param listener Progress listener to track extracted entries.
      * @throws IOException on I/O errors.
      */
-    private static void unwrap(@NotNull File dir) throws IOException {
-        File[] files = dir.listFiles();
-        // Act only if there is a single entry and it's a directory.
-        if (files != null && files.length == 1 && files[0].isDirectory()) {
-            File dir_to_unwrap = files[0];
-            FileUtil.copyDirContent(dir_to_unwrap, dir);
-            FileUtil.delete(dir_to_unwrap);
-        }
+    public static void unzipResumable(@NotNull File zipFile,
+                                      @NotNull File destDir,
+                                      @Nullable ProgressIndicator indicator,
+                                      boolean showFile,
+                                      @Nullable Condition<String> filter,
+                                      int skipEntries,
+                                      @Nullable ProgressListener listener) throws IOException {
+        doUnzip(zipFile, destDir, indicator, true, showFile, filter,
+            skipEntries, listener);
     }
 
     /**
@@ -133,21 +332,7 @@ public class ZipUtils {
                              boolean dropDest,
                              boolean unwrapSingleDir,
                              boolean showFile) throws IOException {
-        if (dropDest && destDir.exists())
-            FileUtil.delete(destDir);
-
-        try (ZipFile zip_file = new ZipFile(zipFile, ZipFile.OPEN_READ)) {
-            Enumeration<? extends ZipEntry> entries = zip_file.entries();
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                try (InputStream stream = zip_file.getInputStream(entry)) {
-                    unzipEntry(entry, stream, destDir, indicator, showFile);
-                }
-            }
-        }
-
-        if (unwrapSingleDir)
-            unwrap(destDir);
+        unzip(zipFile, destDir, indicator, dropDest, unwrapSingleDir, showFile, null);
     }
 
     /**
@@ -186,6 +371,27 @@ public class ZipUtils {
                                    @NotNull File destDir,
                                    @Nullable ProgressIndicator indicator,
                                    boolean showFile) throws IOException {
+        unzipAtomic(zipFile, destDir, indicator, showFile, null);
+    }
+
+    /**
+     * Atomically Replace given directory with the filtered zip archive
+     * content.
+     *
+     * @param zipFile Archive to unzip.
+     * @param destDir Destination directory.
+     * @param indicator IDE progress indicator.
+     * @param showFile Show filename in progress UI.
+     * @param filter Entries filter, null to extract all entries.
+     * @throws IOException on I/O errors.
+     *
+     * @see ZipUtils#unzip(File, File, ProgressIndicator, boolean, boolean, boolean, Condition)
+     */
+    public static void unzipAtomic(@NotNull File zipFile,
+                                   @NotNull File destDir,
+                                   @Nullable ProgressIndicator indicator,
+                                   boolean showFile,
+                                   @Nullable Condition<String> filter) throws IOException {
         File dest_dir = destDir;
         boolean need_replace = false;
 
@@ -197,33 +403,284 @@ public class ZipUtils {
 
         if (destDir.exists()) {
             need_replace = true;
-            dest_dir = new File(destDir.getAbsolutePath() + ".new");
+            dest_dir = getNewDir(destDir);
         }
 
-        unzip(zipFile, dest_dir, indicator, showFile);
+        unzip(zipFile, dest_dir, indicator, true, true, showFile, filter);
+
+        if (need_replace)
+            swapDirs(dest_dir, destDir);
+    }
 
-        if (need_replace) {
-            Path orig_path = destDir.toPath();
+    /** Temporary directory used to extract new content of the given one. */
+    @NotNull
+    public static File getNewDir(@NotNull File destDir) {
+        return new File(destDir.getAbsolutePath() + ".new");
+    }
 
+    /** Temporary directory used to keep old content of the given one. */
+    @NotNull
+    public static File getOldDir(@NotNull File destDir) {
+        return new File(destDir.getAbsolutePath() + ".old");
+    }
+
+    /**
+     * Replace directory with the new one.
+     *
+     * It moves <em>destDir</em> to the {@link #getOldDir(File) old dir},
+     * then moves <em>newDir</em> to the <em>destDir</em> and deletes the old
+     * dir. It's safe to call this method again if previous call is
+     * interrupted: if <em>newDir</em> is missing then only old dir is
+     * deleted. If a move fails then directories are moved back, so
+     * the swap may be repeated.
+     *
+     * @param newDir Directory with new content.
+     * @param destDir Directory to replace.
+     * @throws IOException on I/O errors.
+     */
+    public static void swapDirs(@NotNull File newDir,
+                                @NotNull File destDir) throws IOException {
+        File old = getOldDir(destDir);
+
+        if (newDir.exists()) {
             // At first move original dir to the /path/to/dir.old
-            File old = new File(destDir.getAbsoluteFile() + ".old");
-            if (old.exists())
-                FileUtil.delete(old);
+            if (destDir.exists()) {
+                if (old.exists())
+                    FileUtil.delete(old);
 
-//            // Unsupported!!!
-//            Files.move(destDir.toPath(), old.toPath(),
-//                StandardCopyOption.ATOMIC_MOVE,
-//                StandardCopyOption.COPY_ATTRIBUTES);
+//                // Unsupported!!!
+//                Files.move(destDir.toPath(), old.toPath(),
+//                    StandardCopyOption.ATOMIC_MOVE,
+//                    StandardCopyOption.COPY_ATTRIBUTES);
 
-            FileUtil.moveDirWithContent(destDir, old);
-            FileUtil.moveDirWithContent(dest_dir, destDir);
+                if (!FileUtil.moveDirWithContent(destDir, old)) {
+                    restoreDir(old, destDir);
+                    throw new IOException("Unable to move '" + destDir + "' to '" + old + "'!");
+                }
+            }
 
 //            // Then rename /path/to/dir.new -> /path/to/dir
 //            Files.move(dest_dir.toPath(), orig_path,
 //                StandardCopyOption.ATOMIC_MOVE,
 //                StandardCopyOption.COPY_ATTRIBUTES);
 
+            if (!FileUtil.moveDirWithContent(newDir, destDir)) {
+                restoreDir(destDir, newDir);
+                restoreDir(old, destDir);
+                throw new IOException("Unable to move '" + newDir + "' to '" + destDir + "'!");
+            }
+        }
+
+        if (old.exists())
             FileUtil.delete(old);
+    }
+
+    // Move (partially) moved directory back after failed swap.
+    private static void restoreDir(@NotNull File from, @NotNull File to) {
+        if (from.exists() && !FileUtil.moveDirWithContent(from, to))
+            LOG.warn("Unable to restore '" + to + "' from '" + from + "'");
+    }
+
+    /**
+     * Collect statistics of the archive entries to extract.
+     *
+     * Uncompressed sizes are taken from the archive central directory,
+     * so this method doesn't decompress anything.
+     *
+     * @param zipFile Archive.
+     * @param unwrapSingleDir Unwrap content of a single directory.
+     * @param filter Entries filter, null to take all entries.
+     * @return Archive statistics.
+     * @throws IOException on I/O errors.
+     */
+    @NotNull
+    public static ArchiveStats getStats(@NotNull File zipFile,
+                                        boolean unwrapSingleDir,
+                                        @Nullable Condition<String> filter) throws IOException {
+        ArchiveStats stats = new ArchiveStats();
+
+        try (ZipFile zip_file = new ZipFile(zipFile, ZipFile.OPEN_READ)) {
+            String root = unwrapSingleDir ? getSingleRoot(zip_file) : null;
+
+            Enumeration<? extends ZipEntry> entries = zip_file.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (getRelativePath(entry, root, filter) == null)
+                    continue;
+
+                long size = Math.max(entry.getSize(), entry.getCompressedSize());
+                stats.entries++;
+                stats.totalSize += Math.max(size, 0);
+                stats.largestSize = Math.max(stats.largestSize, size);
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * Helper method to check if file has the same content as zip entry.
+     *
+     * It compares sizes and then CRC32 checksums.
+     */
+    private static boolean isSameContent(@NotNull File file,
+                                         @NotNull ZipEntry entry) throws IOException {
+        if (!file.isFile() || entry.getSize() < 0 || entry.getCrc() < 0
+            || file.length() != entry.getSize()) {
+            return false;
+        }
+
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int count;
+            while ((count = in.read(buffer)) > 0)
+                crc.update(buffer, 0, count);
+        }
+        return crc.getValue() == entry.getCrc();
+    }
+
+    /**
+     * Helper method to delete files which are not in the <em>keep</em> set.
+     *
+     * @param dir Directory to clean.
+     * @param prefix Relative path of the directory ('' for root).
+     * @param keep Relative paths to keep.
+     */
+    private static void deleteStale(@NotNull File dir, @NotNull String prefix,
+                                    @NotNull Set<String> keep) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files) {
+            String path = prefix + file.getName();
+            if (file.isDirectory() && !Files.isSymbolicLink(file.toPath())) {
+                deleteStale(file, path + "/", keep);
+                String[] rest = file.list();
+                if (!keep.contains(path) && rest != null && rest.length == 0)
+                    FileUtil.delete(file);
+            }
+            else if (!keep.contains(path)) {
+                LOG.debug("Deleting stale " + path);
+                FileUtil.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Update given directory in place with the zip archive content.
+     *
+     * Unlike {@link #unzipAtomic(File, File, ProgressIndicator, boolean, Condition)}
+     * it doesn't create a copy of the destination directory, so extra disk
+     * space is limited by the largest changed file:
+     *
+     * <ul>
+     *     <li>Files with the same size and CRC32 are kept as is.</li>
+     *     <li>Changed files are extracted to a temporary file next to
+     *         the target and then moved over it.</li>
+     *     <li>Files which are not in the archive (or filtered out) are
+     *         deleted.</li>
+     * </ul>
+     *
+     * The operation is not atomic: if it's interrupted then directory
+     * contains mix of old and new files.
+     *
+     * @param zipFile Archive to unzip.
+     * @param destDir Destination directory.
+     * @param indicator IDE progress indicator.
+     * @param showFile Show filename in progress UI.
+     * @param filter Entries filter, null to extract all entries.
+     * @throws IOException on I/O errors.
+     */
+    public static void unzipInPlace(@NotNull File zipFile,
+                                    @NotNull File destDir,
+                                    @Nullable ProgressIndicator indicator,
+                                    boolean showFile,
+                                    @Nullable Condition<String> filter) throws IOException {
+        Set<String> keep = new HashSet<>();
+        int reused = 0;
+
+        try (ZipFile zip_file = new ZipFile(zipFile, ZipFile.OPEN_READ)) {
+            String root = getSingleRoot(zip_file);
+
+            Enumeration<? extends ZipEntry> entries = zip_file.entries();
+            while (entries.hasMoreElements()) {
+                if (indicator != null)
+                    indicator.checkCanceled();
+
+                ZipEntry entry = entries.nextElement();
+                String path = getRelativePath(entry, root, filter);
+                if (path == null)
+                    continue;
+
+                // Directories in the 'keep' set must include all parents.
+                keep.add(path);
+                for (int pos = path.indexOf('/'); pos != -1; pos = path.indexOf('/', pos + 1))
+                    keep.add(path.substring(0, pos));
+
+                File target = new File(destDir, path);
+
+                if (entry.isDirectory()) {
+                    if (!target.isDirectory() && target.exists())
+                        FileUtil.delete(target);
+                }
+                else if (isSameContent(target, entry)) {
+                    reused++;
+                    continue;
+                }
+                else if (target.isDirectory()) {
+                    FileUtil.delete(target);
+                }
+
+                String part_path = path + ".part";
+                try (InputStream stream = zip_file.getInputStream(entry)) {
+                    unzipEntry(entry, entry.isDirectory() ? path : part_path,
+                        stream, destDir, indicator, showFile);
+                }
+
+                if (!entry.isDirectory()) {
+                    Files.move(new File(destDir, part_path).toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+
+        deleteStale(destDir, "", keep);
+        LOG.debug("In-place unzip: reused " + reused + " of " + keep.size() + " entries");
+    }
+
+    /**
+     * Temporary files left in the destination directory by the interrupted
+     * {@link #unzipInPlace(File, File, ProgressIndicator, boolean, Condition)}.
+     *
+     * Only paths of the given archive entries are checked, so files
+     * which are not created by the extraction are never returned.
+     *
+     * @param zipFile Archive which was extracted.
+     * @param destDir Destination directory.
+     * @return Existing temporary files.
+     * @throws IOException on I/O errors.
+     */
+    @NotNull
+    public static List<File> getPartFiles(@NotNull File zipFile,
+                                          @NotNull File destDir) throws IOException {
+        List<File> result = new ArrayList<>();
+        try (ZipFile zip_file = new ZipFile(zipFile, ZipFile.OPEN_READ)) {
+            String root = getSingleRoot(zip_file);
+
+            Enumeration<? extends ZipEntry> entries = zip_file.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String path = entry.isDirectory() ? null : getRelativePath(entry, root, null);
+                if (path == null)
+                    continue;
+
+                File file = new File(destDir, path + ".part");
+                if (file.isFile())
+                    result.add(file);
+            }
         }
+        return result;
     }
 }
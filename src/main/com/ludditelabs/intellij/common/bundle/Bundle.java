@@ -26,7 +26,7 @@ import org.jetbrains.annotations.Nullable;
  */
 public class Bundle {
     @NotNull private final String m_displayName;
-    @Nullable private BundleMetadata m_metadata = null;
+    @Nullable private volatile BundleMetadata m_metadata = null;
 
     /**
      * Construct bundle.
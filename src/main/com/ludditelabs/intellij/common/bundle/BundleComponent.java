@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.bundle;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Platform bundle component group.
+ *
+ * Component is a named group of bundle files (for example optional
+ * language pack). Files are selected by Ant-style path patterns relative
+ * to the bundle root:
+ *
+ * <pre>
+ * {@code
+ *    {
+ *      "name": "lang-de",
+ *      "description": "German language pack",
+ *      "include": ["lang/de/**"],
+ *      "exclude": ["lang/de/README"]
+ *    }
+ * }
+ * </pre>
+ *
+ * Files which don't belong to any component are always installed.
+ */
+public class BundleComponent {
+    public String name = null;
+    public String description = null;
+    public ArrayList<String> include = null;
+    public ArrayList<String> exclude = null;
+
+    // Compiled patterns, built on first use.
+    private transient List<Pattern> m_include = null;
+    private transient List<Pattern> m_exclude = null;
+
+    public String getName() {
+        return name == null ? "" : name;
+    }
+
+    public String getDescription() {
+        return description == null ? getName() : description;
+    }
+
+    public boolean isValid() {
+        return name != null && include != null && !include.isEmpty();
+    }
+
+    @NotNull
+    private static List<Pattern> compile(List<String> patterns) {
+        List<Pattern> result = new ArrayList<>();
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                result.add(Pattern.compile(FileUtil.convertAntToRegexp(pattern)));
+            }
+        }
+        return result;
+    }
+
+    private static boolean matches(@NotNull List<Pattern> patterns,
+                                   @NotNull String path) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).matches())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return true if given path belongs to this component.
+     *
+     * @param path Path relative to the bundle root, with '/' separators.
+     * @return boolean
+     */
+    public boolean contains(@NotNull String path) {
+        synchronized (this) {
+            if (m_include == null) {
+                m_include = compile(include);
+                m_exclude = compile(exclude);
+            }
+        }
+        return matches(m_include, path) && !matches(m_exclude, path);
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.bundle;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.util.text.StringUtil;
+import com.ludditelabs.intellij.common.SingleFlight;
+import com.ludditelabs.intellij.common.ZipUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Platform bundle disk garbage collector.
+ *
+ * It deletes leftovers of the bundle installs:
+ *
+ * <ul>
+ *     <li>{@code <bundle>.new} and {@code <bundle>.old} directories;</li>
+ *     <li>downloaded package archive and install journal;</li>
+ *     <li>{@code *.part} files of the interrupted in-place install
+ *         recorded in the install journal.</li>
+ * </ul>
+ *
+ * Leftovers of the install which may be resumed (see {@link InstallJournal})
+ * are kept until they are older than max age or quota is exceeded.
+ * Installed bundle is never touched.
+ *
+ * Files are deleted in small batches with pauses in a low priority pooled
+ * thread, so collection doesn't compete with the IDE.
+ */
+public class BundleGarbageCollector {
+    protected static final Logger LOG = Logger.getInstance("ludditelabs.bundle.BundleGarbageCollector");
+
+    private static final int BATCH_SIZE = 100;
+    private static final long BATCH_PAUSE_MS = 50;
+
+    /** Collection result. */
+    public static class Result {
+        /** Time when collection is finished. */
+        public long timestamp = 0;
+        /** Number of deleted files. */
+        public int deletedFiles = 0;
+        /** Size of deleted files. */
+        public long reclaimedBytes = 0;
+        /** Size of bundle leftovers which are kept. */
+        public long remainingBytes = 0;
+
+        @Override
+        public String toString() {
+            return String.format("deleted %d files, reclaimed %s, remaining %s",
+                deletedFiles,
+                StringUtil.formatFileSize(reclaimedBytes),
+                StringUtil.formatFileSize(remainingBytes));
+        }
+    }
+
+    // Inventory item.
+    private static class Item {
+        final File file;
+        final long size;
+        final long lastModified;
+        // Item is required to resume interrupted install.
+        final boolean resumable;
+
+        Item(@NotNull File file, long size, long lastModified, boolean resumable) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.resumable = resumable;
+        }
+    }
+
+    @NotNull private final Updater m_updater;
+    private final AtomicBoolean m_running = new AtomicBoolean(false);
+    private volatile long m_quota = 0;
+    private volatile long m_maxAge = TimeUnit.DAYS.toMillis(7);
+    @Nullable private volatile Result m_lastResult = null;
+    private volatile long m_totalReclaimed = 0;
+
+    public BundleGarbageCollector(@NotNull Updater updater) {
+        m_updater = updater;
+    }
+
+    /** Max size of the bundle leftovers, 0 means unlimited. */
+    public long getQuota() {
+        return m_quota;
+    }
+
+    /**
+     * Set max size of the bundle leftovers.
+     *
+     * If leftovers take more space then oldest ones are deleted, including
+     * files of the interrupted install.
+     *
+     * @param bytes Size in bytes, 0 means unlimited.
+     */
+    public void setQuota(long bytes) {
+        m_quota = bytes;
+    }
+
+    /** Max age of the leftovers in milliseconds. */
+    public long getMaxAge() {
+        return m_maxAge;
+    }
+
+    /**
+     * Set max age of the leftovers.
+     *
+     * @param millis Age in milliseconds.
+     */
+    public void setMaxAge(long millis) {
+        m_maxAge = millis;
+    }
+
+    /** Result of the last collection or null if it didn't run yet. */
+    @Nullable
+    public Result getLastResult() {
+        return m_lastResult;
+    }
+
+    /** Total size of deleted files since IDE start. */
+    public long getTotalReclaimedBytes() {
+        return m_totalReclaimed;
+    }
+
+    // Helper method to calculate file or directory size.
+    private static long sizeOf(@NotNull File file) {
+        if (!file.isDirectory())
+            return file.length();
+
+        final long[] size = {0};
+        try {
+            Files.walkFileTree(file.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    size[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException e) {
+            LOG.debug(e);
+        }
+        return size[0];
+    }
+
+    private static void addItem(@NotNull List<Item> items, @NotNull File file,
+                                boolean resumable) {
+        if (file.exists())
+            items.add(new Item(file, sizeOf(file), file.lastModified(), resumable));
+    }
+
+    // Collect '*.part' files left by the interrupted in-place install.
+    // Only entries of the journal's archive are checked, so files which
+    // don't belong to the install are never touched.
+    private static void addPartFiles(@NotNull List<Item> items, @NotNull File dir,
+                                     @NotNull InstallJournal journal) {
+        if (journal.strategy != InstallStrategy.IN_PLACE || !journal.hasArchive())
+            return;
+
+        try {
+            for (File file : ZipUtils.getPartFiles(new File(journal.archive), dir))
+                addItem(items, file, false);
+        }
+        catch (IOException e) {
+            LOG.debug("Can't read " + journal.archive, e);
+        }
+    }
+
+    /**
+     * Build inventory of the bundle leftovers.
+     */
+    @NotNull
+    private List<Item> inventory() {
+        List<Item> items = new ArrayList<>();
+        String path = m_updater.getLocalBundle().getBundlePath();
+        File bundle_dir = new File(path);
+
+        InstallJournal journal = InstallJournal.load(path);
+        boolean resumable = journal != null && (journal.hasArchive()
+            || journal.phase.compareTo(InstallJournal.Phase.EXTRACTED) >= 0);
+
+        addItem(items, ZipUtils.getNewDir(bundle_dir), resumable);
+        addItem(items, PackageDownloader.getArchiveFile(path), resumable);
+        addItem(items, InstallJournal.getFile(path), resumable);
+        addItem(items, new File(InstallJournal.getFile(path).getPath() + ".tmp"), false);
+        addItem(items, ZipUtils.getOldDir(bundle_dir), false);
+
+        if (journal != null)
+            addPartFiles(items, bundle_dir, journal);
+
+        return items;
+    }
+
+    /**
+     * Delete file or directory in batches.
+     *
+     * @return Number of deleted files and their size.
+     */
+    private static long[] delete(@NotNull File file) throws InterruptedException {
+        final List<Path> paths = new ArrayList<>();
+        try {
+            Files.walkFileTree(file.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    paths.add(path);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    paths.add(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException e) {
+            LOG.debug(e);
+        }
+
+        long[] result = {0, 0};
+        int batch = 0;
+        for (Path path : paths) {
+            File file_to_delete = path.toFile();
+            boolean is_file = file_to_delete.isFile();
+            long size = is_file ? file_to_delete.length() : 0;
+            try {
+                Files.deleteIfExists(path);
+                if (is_file) {
+                    result[0]++;
+                    result[1] += size;
+                }
+            }
+            catch (IOException e) {
+                LOG.debug("Can't delete " + path, e);
+            }
+
+            if (++batch == BATCH_SIZE) {
+                batch = 0;
+                Thread.sleep(BATCH_PAUSE_MS);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Collect garbage in the caller thread.
+     *
+     * Collection is serialized with installs of the bundle: if install is
+     * in progress then it waits for the install to finish, so files of
+     * the running install are never deleted.
+     *
+     * Does nothing if collection is already running.
+     *
+     * @return Collection result or null if collection is skipped.
+     */
+    @Nullable
+    public Result collect() {
+        if (!m_running.compareAndSet(false, true))
+            return null;
+
+        try {
+            final Result[] result = {null};
+            m_updater.runInstall(new SingleFlight.Call<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    try {
+                        result[0] = doCollect();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                }
+            }, new EmptyProgressIndicator());
+            return result[0];
+        }
+        catch (IOException e) {
+            LOG.debug(e);
+            return null;
+        }
+        finally {
+            m_running.set(false);
+        }
+    }
+
+    // Must be called exclusively with installs.
+    @NotNull
+    private Result doCollect() throws InterruptedException {
+        Result result = new Result();
+        List<Item> items = inventory();
+        long now = System.currentTimeMillis();
+
+        // Oldest first.
+        Collections.sort(items, new Comparator<Item>() {
+            @Override
+            public int compare(Item o1, Item o2) {
+                return Long.compare(o1.lastModified, o2.lastModified);
+            }
+        });
+
+        long total = 0;
+        for (Item item : items)
+            total += item.size;
+
+        for (Item item : items) {
+            boolean expired = now - item.lastModified > m_maxAge;
+            boolean over_quota = m_quota > 0 && total > m_quota;
+
+            if (!item.resumable || expired || over_quota) {
+                LOG.debug("Deleting " + item.file);
+                long[] deleted = delete(item.file);
+                result.deletedFiles += deleted[0];
+                result.reclaimedBytes += deleted[1];
+                total -= item.size;
+            }
+        }
+
+        result.remainingBytes = Math.max(total, 0);
+        result.timestamp = System.currentTimeMillis();
+        m_lastResult = result;
+        m_totalReclaimed += result.reclaimedBytes;
+
+        LOG.info(m_updater.getLocalBundle().getDisplayName() + " bundle GC: " + result);
+        return result;
+    }
+
+    /**
+     * Collect garbage in a low priority pooled thread.
+     *
+     * @return Future of the collection.
+     */
+    @NotNull
+    public Future<?> collectAsync() {
+        return ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+            @Override
+            public void run() {
+                Thread thread = Thread.currentThread();
+                int priority = thread.getPriority();
+                try {
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    collect();
+                }
+                finally {
+                    thread.setPriority(priority);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.bundle;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.Ref;
+import com.intellij.util.io.HttpRequests;
+import com.ludditelabs.intellij.common.DownloadUtils;
+import com.ludditelabs.intellij.common.SingleFlight;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregated index of the remote bundles.
+ *
+ * Index covers all bundles, platforms and architectures in one JSON file:
+ * <pre>
+ * {@code
+ *    {
+ *      "bundles": {
+ *        "<name>": {
+ *          "<os>/<arch>": {
+ *            "versions": {
+ *              "x.y.z": {...}
+ *            }
+ *          }
+ *        }
+ *      }
+ *    }
+ * }
+ * </pre>
+ * Each {@code <os>/<arch>} object has the same structure as
+ * {@code meta.json} of the {@link RemoteBundle}.
+ *
+ * Index content is shared by all bundles: it's downloaded once and kept
+ * in memory for a short time, so checks of several bundles make a single
+ * request. Expired content is revalidated with a conditional request.
+ *
+ * @see RemoteBundle#setIndex(String, String)
+ */
+public class BundleIndex {
+    protected static final Logger LOG = Logger.getInstance("ludditelabs.bundle.BundleIndex");
+
+    // How long downloaded index is used without revalidation.
+    private static final long TTL = TimeUnit.MINUTES.toMillis(1);
+
+    /** Downloaded index content. */
+    public static class Content {
+        @NotNull public final byte[] data;
+        @Nullable public final String lastModified;
+        @Nullable public final String etag;
+        public final long fetchedAt;
+
+        Content(@NotNull byte[] data, @Nullable String lastModified, @Nullable String etag) {
+            this.data = data;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.fetchedAt = System.currentTimeMillis();
+        }
+
+        boolean isFresh() {
+            long age = System.currentTimeMillis() - fetchedAt;
+            return age >= 0 && age < TTL;
+        }
+    }
+
+    private static final ConcurrentMap<String, Content> CACHE = new ConcurrentHashMap<>();
+    private static final SingleFlight<String, Content> FLIGHT = new SingleFlight<>();
+
+    /**
+     * Get index content.
+     *
+     * @param url Index URL.
+     * @param indicator Progress indicator or null.
+     * @return Index content.
+     * @throws IOException on network I/O errors.
+     */
+    @NotNull
+    public static Content fetch(@NotNull final String url,
+                                @Nullable final ProgressIndicator indicator) throws IOException {
+        Content cached = CACHE.get(url);
+        if (cached != null && cached.isFresh())
+            return cached;
+
+        return FLIGHT.execute(url, new SingleFlight.Call<Content>() {
+            @Override
+            public Content call() throws IOException {
+                Content content = download(url, CACHE.get(url), indicator);
+                CACHE.put(url, content);
+                return content;
+            }
+        }, indicator);
+    }
+
+    /**
+     * Drop cached content, so next {@link #fetch(String, ProgressIndicator)}
+     * downloads the index.
+     *
+     * @param url Index URL.
+     */
+    public static void invalidate(@NotNull String url) {
+        CACHE.remove(url);
+    }
+
+    @NotNull
+    private static Content download(@NotNull String url,
+                                    @Nullable final Content cached,
+                                    @Nullable ProgressIndicator indicator) throws IOException {
+        LOG.debug("Downloading ", url);
+
+        final Ref<String> last_modified = new Ref<>();
+        final Ref<String> etag = new Ref<>();
+        final Ref<Boolean> not_modified = new Ref<>(false);
+
+        HttpRequests.RequestProcessor<Void> processor = new HttpRequests.RequestProcessor<Void>() {
+            @Override
+            public Void process(@NotNull HttpRequests.Request request) throws IOException {
+                URLConnection con = request.getConnection();
+                last_modified.set(con.getHeaderField("last-modified"));
+                etag.set(con.getHeaderField("etag"));
+                not_modified.set(con instanceof HttpURLConnection
+                    && ((HttpURLConnection)con).getResponseCode()
+                    == HttpURLConnection.HTTP_NOT_MODIFIED);
+                return null;
+            }
+        };
+
+        HttpRequests.ConnectionTuner tuner = null;
+        if (cached != null && cached.etag != null) {
+            tuner = new HttpRequests.ConnectionTuner() {
+                @Override
+                public void tune(@NotNull URLConnection connection) throws IOException {
+                    connection.setRequestProperty("If-None-Match", cached.etag);
+                }
+            };
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DownloadUtils.download(url, out, indicator, false, false,
+            "Can't download bundle index", processor, tuner);
+
+        if (not_modified.get() && cached != null) {
+            LOG.debug("Bundle index is not modified");
+            return new Content(cached.data, cached.lastModified, cached.etag);
+        }
+        return new Content(out.toByteArray(), last_modified.get(), etag.get());
+    }
+}
@@ -105,11 +105,12 @@ public class BundleManager extends Updater {
     @NotNull private String m_afterFirstDownloadText = "Platform Bundle is installed.";
     @NotNull private String m_infoDialogTitle = "Platform Bundle Update";
     @NotNull private PlatformChecker m_platformChecker = new PlatformChecker();
+    @NotNull private final UpdateCheckScheduler m_scheduler;
 
     /**
      * Construct manager.
      *
-     * Do nothing by default.
+     * Local bundle state and cached metadata are loaded in background.
      */
     public BundleManager(@NotNull String pluginVersion,
                          @NotNull RemoteBundle remoteBundle,
@@ -131,6 +132,17 @@ public class BundleManager extends Updater {
             NotificationDisplayType.STICKY_BALLOON,
             true
         );
+
+        m_scheduler = new UpdateCheckScheduler(this, new Consumer<BundleMetadata>() {
+            @Override
+            public void consume(BundleMetadata metadata) {
+                if (metadata.isNewerThan(getLocalBundle().getMetadata()))
+                    showNewVersionNotification(null, metadata);
+            }
+        });
+
+        // Load bundle state in background instead of the service startup.
+        prefetch();
     }
 
     // Updater API
@@ -337,6 +349,39 @@ public class BundleManager extends Updater {
         }, true, true);
     }
 
+    /**
+     * Start periodic background update checks.
+     *
+     * New version notification is shown if newer bundle is found.
+     *
+     * @see UpdateCheckScheduler
+     */
+    public void startUpdateChecks() {
+        m_scheduler.start();
+    }
+
+    /**
+     * Stop periodic background update checks.
+     */
+    public void stopUpdateChecks() {
+        m_scheduler.stop();
+    }
+
+    /** Background update checks scheduler. */
+    @NotNull
+    public UpdateCheckScheduler getUpdateCheckScheduler() {
+        return m_scheduler;
+    }
+
+    /**
+     * Stop update checks and dispose the updater.
+     */
+    @Override
+    public void dispose() {
+        m_scheduler.stop();
+        super.dispose();
+    }
+
     // TODO: improve me if possible.
     /**
      * Return true if platform is supported.
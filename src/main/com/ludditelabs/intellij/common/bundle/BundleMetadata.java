@@ -16,11 +16,13 @@
 
 package com.ludditelabs.intellij.common.bundle;
 
-import com.intellij.util.text.VersionComparatorUtil;
+import com.ludditelabs.intellij.common.VersionIndex;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Platform bundle metadata.
@@ -35,6 +37,23 @@ public class BundleMetadata {
     public String message = null;
     public ArrayList<String> changes = null;
     public long lastModified = 0;
+    public ArrayList<BundleComponent> components = null;
+    // Names of installed components; null means all components are installed.
+    public ArrayList<String> installedComponents = null;
+
+    // Parsed version, built on first comparison.
+    private transient VersionIndex.Key m_versionKey = null;
+
+    @NotNull
+    private VersionIndex.Key getVersionKey() {
+        String str = version == null ? "" : version;
+        VersionIndex.Key key = m_versionKey;
+        if (key == null || !key.getVersion().equals(str)) {
+            key = VersionIndex.parse(str);
+            m_versionKey = key;
+        }
+        return key;
+    }
 
     public String getVersion() {
         return version == null ? "N/A" : version;
@@ -51,6 +70,58 @@ public class BundleMetadata {
     public boolean isValid() {
         return dist != null && version != null;
     }
+
+    public boolean hasComponents() {
+        return components != null && !components.isEmpty();
+    }
+
+    /**
+     * Find component by name.
+     *
+     * @param name Component name.
+     * @return Component or null.
+     */
+    @Nullable
+    public BundleComponent getComponent(@NotNull String name) {
+        if (components != null) {
+            for (BundleComponent component : components) {
+                if (name.equals(component.name))
+                    return component;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return true if component with the given name is installed.
+     *
+     * @param name Component name.
+     * @return boolean
+     */
+    public boolean isComponentInstalled(@NotNull String name) {
+        return installedComponents == null || installedComponents.contains(name);
+    }
+
+    /**
+     * Return components which are requested but not installed yet.
+     *
+     * @param enabled Names of requested components, null means all.
+     * @return List of component names.
+     */
+    @NotNull
+    public List<String> getMissingComponents(@Nullable Collection<String> enabled) {
+        List<String> result = new ArrayList<>();
+        if (components != null) {
+            for (BundleComponent component : components) {
+                String name = component.getName();
+                if ((enabled == null || enabled.contains(name))
+                    && !isComponentInstalled(name)) {
+                    result.add(name);
+                }
+            }
+        }
+        return result;
+    }
     /**
      * Return true if this metadata version is newer than
      * version of the given metadata.
@@ -59,7 +130,8 @@ public class BundleMetadata {
      * @return boolean
      */
     public boolean isNewerThan(@Nullable BundleMetadata other) {
-        return other == null || isNewerThan(other.version);
+        return other == null
+            || VersionIndex.compare(getVersionKey(), other.getVersionKey()) > 0;
     }
 
     /**
@@ -69,7 +141,7 @@ public class BundleMetadata {
      * @return boolean
      */
     public boolean isNewerThan(@NotNull String version) {
-        return VersionComparatorUtil.compare(this.version, version) > 0;
+        return VersionIndex.compare(getVersionKey(), VersionIndex.parse(version)) > 0;
     }
 
     /**
@@ -80,7 +152,8 @@ public class BundleMetadata {
      * @return boolean
      */
     public boolean isOlderThan(@Nullable BundleMetadata other) {
-        return other != null && isOlderThan(other.version);
+        return other != null
+            && VersionIndex.compare(getVersionKey(), other.getVersionKey()) < 0;
     }
 
     /**
@@ -90,6 +163,6 @@ public class BundleMetadata {
      * @return boolean
      */
     public boolean isOlderThan(@NotNull String version) {
-        return VersionComparatorUtil.compare(this.version, version) < 0;
+        return VersionIndex.compare(getVersionKey(), VersionIndex.parse(version)) < 0;
     }
 }
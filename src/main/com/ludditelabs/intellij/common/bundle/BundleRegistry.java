@@ -0,0 +1,297 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.bundle;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.progress.util.ProgressIndicatorBase;
+import com.intellij.ui.AppUIUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+
+/**
+ * Registry of the platform bundles managed together.
+ *
+ * Plugins which need several bundles register their updaters here and
+ * check or install all of them at once:
+ * <ul>
+ *     <li>Metadata of all bundles is requested in parallel.</li>
+ *     <li>Packages are downloaded and unpacked in parallel in the shared
+ *         {@link Updater#getExecutor() updater executor}, so installing
+ *         several bundles takes about as long as the largest one.</li>
+ *     <li>Single background task shows aggregated progress.</li>
+ * </ul>
+ */
+public class BundleRegistry {
+    protected static final Logger LOG = Logger.getInstance("ludditelabs.bundle.BundleRegistry");
+
+    // Aggregated progress update interval.
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    @NotNull private final String m_title;
+    @NotNull private final List<Updater> m_updaters = new CopyOnWriteArrayList<>();
+
+    /**
+     * Construct registry.
+     *
+     * @param title Title of the aggregated progress task.
+     */
+    public BundleRegistry(@NotNull String title) {
+        m_title = title;
+    }
+
+    /**
+     * Register updater.
+     *
+     * @param updater Updater to register.
+     */
+    public void register(@NotNull Updater updater) {
+        if (!m_updaters.contains(updater))
+            m_updaters.add(updater);
+    }
+
+    /**
+     * Unregister updater.
+     *
+     * @param updater Updater to unregister.
+     */
+    public void unregister(@NotNull Updater updater) {
+        m_updaters.remove(updater);
+    }
+
+    /** Registered updaters. */
+    @NotNull
+    public List<Updater> getUpdaters() {
+        return new ArrayList<>(m_updaters);
+    }
+
+    /** Return true if any registered updater is busy. */
+    public boolean isBusy() {
+        for (Updater updater : m_updaters) {
+            if (updater.isBusy())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Download metadata of all bundles in parallel.
+     *
+     * This method publishes 'metadataDownloaded' notifications.
+     *
+     * @param checkLastModified Check remote metadata modification time and
+     *                          download only if its newer than local bundle's
+     *                          timestamp.
+     * @return Future with remote metadata per updater. Bundles with not
+     *         modified metadata or failed requests are not included.
+     */
+    @NotNull
+    public CompletableFuture<Map<Updater, BundleMetadata>> checkAll(boolean checkLastModified) {
+        final Map<Updater, CompletableFuture<BundleMetadata>> futures = new LinkedHashMap<>();
+        for (Updater updater : m_updaters)
+            futures.put(updater, updater.checkAsync(checkLastModified));
+
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[futures.size()]))
+            .handle(new BiFunction<Void, Throwable, Map<Updater, BundleMetadata>>() {
+                @Override
+                public Map<Updater, BundleMetadata> apply(Void ignored, Throwable e) {
+                    Map<Updater, BundleMetadata> result = new LinkedHashMap<>();
+                    for (Map.Entry<Updater, CompletableFuture<BundleMetadata>> entry : futures.entrySet()) {
+                        BundleMetadata meta = entry.getValue().getNow(null);
+                        if (meta != null && !entry.getValue().isCompletedExceptionally())
+                            result.put(entry.getKey(), meta);
+                    }
+                    return result;
+                }
+            });
+    }
+
+    /**
+     * Check all bundles and install updates in one background task.
+     *
+     * Bundles which are not installed or have newer remote version are
+     * downloaded and unpacked in parallel.
+     *
+     * This method publishes 'metadataDownloaded' and 'unpacked'
+     * notifications of each updater.
+     *
+     * @param runnable Runnable to call after all bundles are processed.
+     *                 It will be called in the EDT thread.
+     */
+    public void updateAll(@Nullable final Runnable runnable) {
+        new Task.Backgroundable(null, m_title, true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setText("Checking platform bundles...");
+                Map<Updater, BundleMetadata> updates = new LinkedHashMap<>();
+                for (Map.Entry<Updater, BundleMetadata> entry : await(checkAll(false), indicator).entrySet()) {
+                    BundleMetadata local_meta = entry.getKey().getLocalBundle().getMetadata();
+                    if (entry.getValue().isNewerThan(local_meta))
+                        updates.put(entry.getKey(), entry.getValue());
+                }
+                install(updates, indicator);
+                if (runnable != null)
+                    AppUIUtil.invokeOnEdt(runnable);
+            }
+        }.queue();
+    }
+
+    /**
+     * Download and unpack given bundles in one background task.
+     *
+     * This method publishes 'unpacked' notifications of each updater.
+     *
+     * @param bundles Remote metadata per updater, null metadata means
+     *                latest one.
+     * @param runnable Runnable to call after all bundles are processed.
+     *                 It will be called in the EDT thread.
+     */
+    public void downloadAll(@NotNull final Map<Updater, BundleMetadata> bundles,
+                            @Nullable final Runnable runnable) {
+        new Task.Backgroundable(null, m_title, true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                install(bundles, indicator);
+                if (runnable != null)
+                    AppUIUtil.invokeOnEdt(runnable);
+            }
+        }.queue();
+    }
+
+    // Wait for the future checking the indicator.
+    private static <T> T await(@NotNull Future<T> future,
+                               @NotNull ProgressIndicator indicator) {
+        while (true) {
+            if (indicator.isCanceled()) {
+                future.cancel(true);
+                indicator.checkCanceled();
+            }
+            try {
+                return future.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                // Continue waiting.
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessCanceledException();
+            }
+            catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Install bundles in parallel with aggregated progress.
+     *
+     * Each bundle gets its own progress indicator, main indicator shows
+     * average fraction and text of the slowest bundle. Errors are
+     * published by each updater.
+     */
+    private void install(@NotNull Map<Updater, BundleMetadata> bundles,
+                         @NotNull ProgressIndicator indicator) {
+        if (bundles.isEmpty())
+            return;
+
+        indicator.setIndeterminate(false);
+        indicator.setText("Installing " + bundles.size() + " platform bundle(s)...");
+
+        final List<ProgressIndicator> indicators = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (final Map.Entry<Updater, BundleMetadata> entry : bundles.entrySet()) {
+            final ProgressIndicator sub = new ProgressIndicatorBase();
+            indicators.add(sub);
+            futures.add(Updater.getExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    final Updater updater = entry.getKey();
+                    try {
+                        ProgressManager.getInstance().runProcess(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    updater.doDownload(entry.getValue(), sub);
+                                }
+                                catch (IOException e) {
+                                    LOG.debug(e);
+                                    updater.notifyError(e);
+                                }
+                            }
+                        }, sub);
+                    }
+                    catch (ProcessCanceledException e) {
+                        LOG.debug("Bundle install is canceled: "
+                            + updater.getRemoteBundle().getDisplayName());
+                    }
+                    finally {
+                        sub.setFraction(1);
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            while (true) {
+                if (indicator.isCanceled()) {
+                    for (ProgressIndicator sub : indicators)
+                        sub.cancel();
+                }
+                updateProgress(indicator, indicators);
+                try {
+                    future.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    break;
+                }
+                catch (TimeoutException e) {
+                    // Continue waiting.
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                catch (ExecutionException e) {
+                    LOG.warn(e.getCause());
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void updateProgress(@NotNull ProgressIndicator indicator,
+                                       @NotNull List<ProgressIndicator> indicators) {
+        double total = 0;
+        ProgressIndicator slowest = null;
+        for (ProgressIndicator sub : indicators) {
+            double fraction = sub.getFraction();
+            total += fraction;
+            if (fraction < 1 && (slowest == null || fraction < slowest.getFraction()))
+                slowest = sub;
+        }
+        indicator.setFraction(total / indicators.size());
+        if (slowest != null)
+            indicator.setText2(slowest.getText());
+    }
+}
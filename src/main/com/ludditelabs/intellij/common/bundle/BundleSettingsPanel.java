@@ -97,6 +97,11 @@ public class BundleSettingsPanel {
     }
 
     public void setBundleManager(@NotNull BundleManager manager) {
+        // Show last known remote version if cache is already loaded.
+        BundleMetadata cached = manager.getCachedMetadata();
+        if (cached != null)
+            setRemoteMetadata(cached);
+
         manager.subscribe(new BundleManager.NotifierAdapter() {
             @Override
             public void stateChanged(boolean busy) {
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.bundle;
+
+import com.intellij.openapi.util.Condition;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Archive entry filter based on the bundle components.
+ *
+ * It accepts paths which belong to the selected components and paths
+ * which don't belong to any component (bundle core). If {@code withCore}
+ * is false then core paths are rejected, this is used to add missing
+ * components to the already installed bundle.
+ *
+ * @see BundleComponent
+ */
+public class ComponentFilter implements Condition<String> {
+    @NotNull private final List<BundleComponent> m_components;
+    @NotNull private final Collection<String> m_selected;
+    private final boolean m_withCore;
+
+    /**
+     * Construct filter.
+     *
+     * @param metadata Bundle metadata with components info.
+     * @param selected Names of components to accept.
+     * @param withCore Accept paths which don't belong to any component.
+     */
+    public ComponentFilter(@NotNull BundleMetadata metadata,
+                           @NotNull Collection<String> selected,
+                           boolean withCore) {
+        m_components = new ArrayList<>();
+        if (metadata.components != null) {
+            for (BundleComponent component : metadata.components) {
+                if (component.isValid())
+                    m_components.add(component);
+            }
+        }
+        m_selected = selected;
+        m_withCore = withCore;
+    }
+
+    /**
+     * Create filter for the given metadata and enabled components.
+     *
+     * @param metadata Bundle metadata.
+     * @param enabled Names of enabled components, null means all.
+     * @return Filter or null if all entries must be extracted.
+     */
+    @Nullable
+    public static ComponentFilter create(@NotNull BundleMetadata metadata,
+                                         @Nullable Collection<String> enabled) {
+        if (enabled == null || !metadata.hasComponents())
+            return null;
+        return new ComponentFilter(metadata, enabled, true);
+    }
+
+    @Override
+    public boolean value(String path) {
+        boolean is_core = true;
+        for (BundleComponent component : m_components) {
+            if (component.contains(path)) {
+                if (m_selected.contains(component.name))
+                    return true;
+                is_core = false;
+            }
+        }
+        return is_core && m_withCore;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.bundle;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Comparing;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Durable platform bundle install journal.
+ *
+ * Journal is stored in the {@code <bundle path>.journal} file and records
+ * install phases, so interrupted install may be continued without
+ * re-downloading the package and re-extracting already written files.
+ *
+ * Each {@link #save()} writes a temporary file, syncs it to the disk and
+ * renames it over the journal.
+ *
+ * @see PackageDownloader
+ */
+public class InstallJournal {
+    protected static final Logger LOG = Logger.getInstance("ludditelabs.bundle.InstallJournal");
+
+    /** Install phases in order. */
+    public enum Phase {
+        /** Package is being downloaded. */
+        DOWNLOADING,
+        /** Package is downloaded. */
+        DOWNLOADED,
+        /** Package archive is checked. */
+        VERIFIED,
+        /** Package is being extracted. */
+        EXTRACTING,
+        /** Package is extracted, bundle is not replaced yet. */
+        EXTRACTED,
+        /** Bundle directory is being replaced. */
+        SWAPPING
+    }
+
+    // Min number of entries between progress checkpoints.
+    private static final int CHECKPOINT_ENTRIES = 64;
+    // Max time between progress checkpoints.
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+
+    public Phase phase = Phase.DOWNLOADING;
+    public BundleMetadata metadata = null;
+    // Components to install; null means all.
+    public ArrayList<String> components = null;
+    public InstallStrategy strategy = null;
+    public String archive = null;
+    public long archiveSize = 0;
+    // Archive is downloaded by the install and may be deleted after it;
+    // archives provided by the caller are never deleted.
+    public boolean ownsArchive = false;
+    public int extractedEntries = 0;
+    public int totalEntries = 0;
+    public long updatedAt = 0;
+
+    private transient File m_file = null;
+    private transient long m_checkpointTime = 0;
+
+    /** Journal file of the bundle. */
+    @NotNull
+    public static File getFile(@NotNull String bundlePath) {
+        return new File(bundlePath + ".journal");
+    }
+
+    /**
+     * Create new journal for the bundle.
+     *
+     * It's not saved until {@link #save()} is called.
+     *
+     * @param bundlePath Local bundle path.
+     * @param metadata Metadata of the package to install.
+     * @param components Components to install, null means all.
+     * @return Journal.
+     */
+    @NotNull
+    public static InstallJournal create(@NotNull String bundlePath,
+                                        @NotNull BundleMetadata metadata,
+                                        @Nullable Collection<String> components) {
+        InstallJournal journal = new InstallJournal();
+        journal.m_file = getFile(bundlePath);
+        journal.metadata = metadata;
+        journal.components = components == null ? null : new ArrayList<>(components);
+        return journal;
+    }
+
+    /**
+     * Load journal of the bundle.
+     *
+     * @param bundlePath Local bundle path.
+     * @return Journal or null if there is no (valid) journal.
+     */
+    @Nullable
+    public static InstallJournal load(@NotNull String bundlePath) {
+        File file = getFile(bundlePath);
+        if (!file.isFile())
+            return null;
+
+        try (Reader reader = new InputStreamReader(
+            new FileInputStream(file), StandardCharsets.UTF_8)) {
+            InstallJournal journal = new Gson().fromJson(reader, InstallJournal.class);
+            if (journal == null || journal.phase == null
+                || journal.metadata == null || !journal.metadata.isValid()) {
+                LOG.info("Ignoring malformed install journal " + file);
+                return null;
+            }
+            journal.m_file = file;
+            return journal;
+        }
+        catch (IOException | JsonParseException e) {
+            LOG.info("Can't read install journal " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Return true if journal describes installation of the given package
+     * and components.
+     */
+    public boolean isSameInstall(@NotNull BundleMetadata metadata,
+                                 @Nullable Collection<String> components) {
+        return Comparing.equal(this.metadata.version, metadata.version)
+            && Comparing.equal(this.metadata.dist, metadata.dist)
+            && Comparing.equal(this.metadata.pluginVersion, metadata.pluginVersion)
+            && Comparing.equal(this.components, components == null
+                ? null : new ArrayList<>(components));
+    }
+
+    /**
+     * Return true if downloaded package archive is still available.
+     */
+    public boolean hasArchive() {
+        if (phase.compareTo(Phase.DOWNLOADED) < 0 || archive == null)
+            return false;
+        File file = new File(archive);
+        return file.isFile() && file.length() == archiveSize;
+    }
+
+    /**
+     * Set phase and save the journal.
+     *
+     * @param phase New phase.
+     * @throws IOException on I/O errors.
+     */
+    public void setPhase(@NotNull Phase phase) throws IOException {
+        LOG.debug("Install phase: ", phase);
+        this.phase = phase;
+        save();
+    }
+
+    /**
+     * Record extraction progress.
+     *
+     * To reduce disk I/O the journal is saved only periodically.
+     *
+     * @param count Number of extracted entries.
+     * @param total Total number of entries.
+     * @throws IOException on I/O errors.
+     */
+    public void checkpoint(int count, int total) throws IOException {
+        totalEntries = total;
+        long now = System.currentTimeMillis();
+        if (count - extractedEntries >= CHECKPOINT_ENTRIES
+            || now - m_checkpointTime >= CHECKPOINT_INTERVAL_MS) {
+            extractedEntries = count;
+            m_checkpointTime = now;
+            save();
+        }
+    }
+
+    /**
+     * Save the journal.
+     *
+     * @throws IOException on I/O errors.
+     */
+    public void save() throws IOException {
+        updatedAt = System.currentTimeMillis();
+        File tmp = new File(m_file.getPath() + ".tmp");
+
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            new Gson().toJson(this, writer);
+            writer.flush();
+            out.getFD().sync();
+        }
+
+        try {
+            Files.move(tmp.toPath(), m_file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), m_file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Delete the journal; install is finished or aborted.
+     */
+    public void delete() {
+        FileUtil.delete(m_file);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.bundle;
+
+/**
+ * Platform bundle package install strategy.
+ *
+ * @see PackageDownloader
+ */
+public enum InstallStrategy {
+    /**
+     * Choose strategy depending on available disk space: use
+     * {@link #ATOMIC} if there is enough space, otherwise {@link #IN_PLACE}.
+     */
+    AUTO,
+
+    /**
+     * Extract package to a new directory and then replace the installed
+     * bundle. Requires extra space for the whole unpacked bundle.
+     */
+    ATOMIC,
+
+    /**
+     * Update installed bundle in place, keeping unchanged files.
+     * Requires extra space only for the largest changed file, but
+     * interrupted install leaves the bundle broken until next install.
+     */
+    IN_PLACE
+}
@@ -18,12 +18,28 @@ package com.ludditelabs.intellij.common.bundle;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.util.concurrency.PooledThreadExecutor;
 import com.ludditelabs.intellij.common.Utils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -34,17 +50,83 @@ import java.nio.file.Paths;
  *     <li>{@code metadata.json} - bundle metadata.</li>
  *     <li>{@code <name>.exe} or {@code <name>.bin} - bundle executable.</li>
  * </ul>
+ *
+ * Bundle state is kept in memory as immutable {@link Snapshot}, so
+ * {@link #getMetadata()} never touches the disk in the EDT. State is
+ * reloaded in a pooled thread (see {@link #reloadAsync()}) when bundle
+ * directory, metadata or executable are changed on disk.
+ *
+ * Construction doesn't perform any I/O: state is loaded on first access
+ * or by {@link #loadAsync()}, which is supposed to be called in advance,
+ * for example by {@link Updater#prefetch()}.
+ *
+ * Bundle stops watching its files when disposed; {@link Updater}
+ * disposes its local bundle together with itself.
  */
-public class LocalBundle extends Bundle {
+public class LocalBundle extends Bundle implements Disposable {
     protected static final Logger LOG = Logger.getInstance("ludditelabs.bundle");
 
+    /**
+     * Loaded state of the bundle.
+     */
+    public static final class Snapshot {
+        @Nullable private final BundleMetadata m_metadata;
+        private final long m_loadedAt;
+        // Snapshots started later have greater versions.
+        private final long m_version;
+
+        Snapshot(@Nullable BundleMetadata metadata, long version) {
+            m_metadata = metadata;
+            m_loadedAt = System.currentTimeMillis();
+            m_version = version;
+        }
+
+        /**
+         * Bundle metadata or null if bundle is not installed or snapshot
+         * is not loaded.
+         */
+        @Nullable
+        public BundleMetadata getMetadata() {
+            return m_metadata;
+        }
+
+        /** Return true if bundle is installed. */
+        public boolean isExist() {
+            return m_metadata != null;
+        }
+
+        /**
+         * Return false if this is a placeholder returned before the
+         * bundle state is loaded, it doesn't mean bundle is not installed.
+         */
+        public boolean isLoaded() {
+            return m_version > 0;
+        }
+
+        /** Time when the snapshot is loaded. */
+        public long getLoadedAt() {
+            return m_loadedAt;
+        }
+    }
+
     private String m_bundlePath;
     private String m_exePath;
+    private String m_metadataPath;
+    @NotNull private volatile Snapshot m_snapshot = new Snapshot(null, 0);
+    @NotNull private final AtomicLong m_version = new AtomicLong(0);
+    @NotNull private final AtomicReference<CompletableFuture<Snapshot>> m_reload =
+        new AtomicReference<>();
+    // Set if bundle state needs to be reloaded again.
+    @NotNull private final AtomicBoolean m_dirty = new AtomicBoolean(false);
+    @NotNull private final AtomicBoolean m_watching = new AtomicBoolean(false);
+    private volatile boolean m_loaded = false;
+    @Nullable private LocalFileSystem.WatchRequest m_watchRequest = null;
+    private boolean m_disposed = false;
 
     /**
      * Construct bundle.
      *
-     * It construct bundle paths and loads metadata if exists.
+     * It only constructs bundle paths, metadata is loaded later.
      *
      * Bundle paths:
      * <ul>
@@ -61,21 +143,19 @@ public class LocalBundle extends Bundle {
         setup(rootPath, name + "-pkg", name);
     }
 
-    // Construct paths and load metadata.
+    // Construct paths.
     private void setup(String rootPath, String bundleDir, String exeName) {
         m_bundlePath = getPath(rootPath, bundleDir);
         m_exePath = Utils.exeFilename(getPath(m_bundlePath, exeName));
-        reloadMetadata();
+        m_metadataPath = getPath(m_bundlePath, "metadata.json");
     }
 
     // Helper method to load metadata from 'metadata.json' file.
     private BundleMetadata loadMetadata() {
         BundleMetadata meta = null;
-        String path = getPath(m_bundlePath, "metadata.json");
 
-        try {
-            FileInputStream in = new FileInputStream(path);
-            InputStreamReader reader = new InputStreamReader(in);
+        try (Reader reader = new InputStreamReader(
+            new FileInputStream(m_metadataPath), StandardCharsets.UTF_8)) {
             Gson gson = new Gson();
             meta = gson.fromJson(reader, BundleMetadata.class);
         }
@@ -83,28 +163,228 @@ public class LocalBundle extends Bundle {
             LOG.error(e);
         }
         catch (FileNotFoundException e) {
-            LOG.debug(String.format("Can't find platform bundle metadata %s", path));
+            LOG.debug(String.format("Can't find platform bundle metadata %s", m_metadataPath));
+        }
+        catch (IOException e) {
+            LOG.debug(e);
         }
 
         return meta;
     }
 
+    // Load bundle state from the disk.
+    @NotNull
+    private Snapshot load() {
+        // Version is taken before reading, so the load which started
+        // later wins even if it finishes earlier.
+        long version = m_version.incrementAndGet();
+        File f = new File(m_exePath);
+        return new Snapshot(f.isFile() ? loadMetadata() : null, version);
+    }
+
+    // Replace current snapshot unless newer one is already set.
+    @NotNull
+    private synchronized Snapshot publish(@NotNull Snapshot snapshot) {
+        if (snapshot.m_version > m_snapshot.m_version)
+            m_snapshot = snapshot;
+        m_loaded = true;
+        return m_snapshot;
+    }
+
     // Helper method to construct paths.
     protected static String getPath(String basePath, String... path) {
         return Paths.get(basePath, path).toAbsolutePath().toString();
     }
 
-    /** Reload bundle metadata if exists. */
+    /**
+     * Reload bundle metadata if exists.
+     *
+     * Note: it reads files in the current thread, don't call it in the EDT,
+     * use {@link #reloadAsync()} instead.
+     */
     public final void reloadMetadata() {
-        setMetadata(null);
-        File f = new File(m_exePath);
-        if (f.exists() && f.isFile())
-            setMetadata(loadMetadata());
+        publish(load());
+        startWatching();
+    }
+
+    /**
+     * Load bundle state in a pooled thread if it's not loaded yet.
+     *
+     * @return Future with the snapshot.
+     */
+    @NotNull
+    public CompletableFuture<Snapshot> loadAsync() {
+        if (m_loaded)
+            return CompletableFuture.completedFuture(m_snapshot);
+        return reloadAsync();
+    }
+
+    /** Return true if bundle state is loaded. */
+    public boolean isLoaded() {
+        return m_loaded;
+    }
+
+    /**
+     * Reload bundle state in a pooled thread.
+     *
+     * Concurrent calls share the same reload; if it's requested while
+     * loading then state is loaded once more, so changes are not missed.
+     *
+     * @return Future with the new snapshot.
+     */
+    @NotNull
+    public CompletableFuture<Snapshot> reloadAsync() {
+        m_dirty.set(true);
+        while (true) {
+            CompletableFuture<Snapshot> current = m_reload.get();
+            if (current != null)
+                return current;
+
+            final CompletableFuture<Snapshot> future = new CompletableFuture<>();
+            if (!m_reload.compareAndSet(null, future))
+                continue;
+
+            PooledThreadExecutor.INSTANCE.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Snapshot snapshot;
+                        do {
+                            m_dirty.set(false);
+                            snapshot = load();
+                        } while (m_dirty.get());
+                        snapshot = publish(snapshot);
+                        m_reload.compareAndSet(future, null);
+                        future.complete(snapshot);
+                        startWatching();
+
+                        // Request could come after the last check but
+                        // before the reload is cleared, it's joined this
+                        // reload, so load once more.
+                        if (m_dirty.get())
+                            reloadAsync();
+                    }
+                    catch (Throwable e) {
+                        m_reload.compareAndSet(future, null);
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+            return future;
+        }
+    }
+
+    /**
+     * Current bundle state.
+     *
+     * If state is not loaded yet then background threads wait for
+     * loading, but the EDT gets not loaded snapshot (see
+     * {@link Snapshot#isLoaded()}) and never blocks. Use {@link #loadAsync()}
+     * to act on the loaded state in the EDT.
+     */
+    @NotNull
+    public Snapshot getSnapshot() {
+        if (!m_loaded && !ApplicationManager.getApplication().isDispatchThread())
+            return awaitLoad();
+        if (!m_loaded)
+            loadAsync();
+        return m_snapshot;
+    }
+
+    // Wait for the first load in the current thread.
+    @NotNull
+    private Snapshot awaitLoad() {
+        try {
+            return loadAsync().get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            LOG.warn(e.getCause());
+        }
+        return m_snapshot;
     }
 
-    /** Return true if bundle exists. */
+    /** Bundle metadata from the current snapshot. */
+    @Nullable
+    @Override
+    public BundleMetadata getMetadata() {
+        return getSnapshot().getMetadata();
+    }
+
+    /** Replace bundle metadata in the current snapshot. */
+    @Override
+    public void setMetadata(@Nullable BundleMetadata metadata) {
+        publish(new Snapshot(metadata, m_version.incrementAndGet()));
+    }
+
+    // Return true if VFS event affects bundle state.
+    private boolean isAffected(@NotNull VFileEvent event) {
+        String path = FileUtil.toSystemDependentName(event.getPath());
+        return FileUtil.pathsEqual(path, m_bundlePath)
+            || FileUtil.pathsEqual(path, m_metadataPath)
+            || FileUtil.pathsEqual(path, m_exePath);
+    }
+
+    /**
+     * Watch bundle files and reload state on changes.
+     *
+     * Bundle directory is added to the watched roots of the local file
+     * system, so external changes are noticed too.
+     */
+    private synchronized void startWatching() {
+        if (m_disposed || !m_watching.compareAndSet(false, true))
+            return;
+
+        m_watchRequest = LocalFileSystem.getInstance().addRootToWatch(m_bundlePath, true);
+        ApplicationManager.getApplication().getMessageBus().connect(this).subscribe(
+            VirtualFileManager.VFS_CHANGES, new BulkFileListener.Adapter() {
+                @Override
+                public void after(@NotNull List<? extends VFileEvent> events) {
+                    for (VFileEvent event : events) {
+                        if (isAffected(event)) {
+                            LOG.debug("Bundle is changed on disk: " + event.getPath());
+                            reloadAsync();
+                            return;
+                        }
+                    }
+                }
+            });
+    }
+
+    /**
+     * Stop watching bundle files.
+     *
+     * Message bus connection is disposed together with the bundle.
+     */
+    @Override
+    public void dispose() {
+        LocalFileSystem.WatchRequest request;
+        synchronized (this) {
+            m_disposed = true;
+            request = m_watchRequest;
+            m_watchRequest = null;
+        }
+        if (request != null)
+            LocalFileSystem.getInstance().removeWatchedRoot(request);
+    }
+
+    /**
+     * Return true if bundle exists.
+     *
+     * Background threads wait for the first load, so bundle which is not
+     * loaded yet is never reported as missing.
+     *
+     * It must not be called in the EDT before the state is loaded (see
+     * {@link #isLoaded()}), use {@link #loadAsync()} there. Such calls
+     * never block: error is logged and not loaded state is used.
+     * Usually state is already loaded by {@link Updater#prefetch()}.
+     */
     public boolean isExist() {
-        return getMetadata() != null;
+        if (!m_loaded && ApplicationManager.getApplication().isDispatchThread())
+            LOG.error("Bundle state is not loaded yet, use loadAsync() in the EDT");
+        return getSnapshot().isExist();
     }
 
     /** Bundle root path. */
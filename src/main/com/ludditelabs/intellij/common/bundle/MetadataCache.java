@@ -0,0 +1,212 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.bundle;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Comparing;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent cache of the last downloaded remote bundle metadata.
+ *
+ * Cache is stored in the {@code <bundle path>.remote.json} file together
+ * with the HTTP ETag and fetch time, so callers may get metadata
+ * immediately and revalidate it with a conditional request later.
+ *
+ * Cached entry is valid only for the same metadata URL and plugin version.
+ */
+public class MetadataCache {
+    protected static final Logger LOG = Logger.getInstance("ludditelabs.bundle.MetadataCache");
+
+    /** Cache entry. */
+    public static class Entry {
+        public String url = null;
+        public String pluginVersion = null;
+        public String etag = null;
+        public long fetchedAt = 0;
+        public BundleMetadata metadata = null;
+
+        /**
+         * Return true if entry is fetched less than <em>ttl</em>
+         * milliseconds ago.
+         */
+        public boolean isFresh(long ttl) {
+            long age = System.currentTimeMillis() - fetchedAt;
+            return age >= 0 && age < ttl;
+        }
+    }
+
+    @NotNull private final Updater m_updater;
+    @NotNull private final File m_file;
+    private long m_ttl = TimeUnit.HOURS.toMillis(1);
+    private volatile boolean m_loaded = false;
+    @Nullable private volatile Entry m_entry = null;
+
+    public MetadataCache(@NotNull Updater updater) {
+        m_updater = updater;
+        m_file = new File(updater.getLocalBundle().getBundlePath() + ".remote.json");
+    }
+
+    /** Time to live of the cached metadata in milliseconds. */
+    public long getTtl() {
+        return m_ttl;
+    }
+
+    /**
+     * Set time to live of the cached metadata.
+     *
+     * Older metadata is still returned but revalidated in background.
+     *
+     * @param millis TTL in milliseconds.
+     */
+    public void setTtl(long millis) {
+        m_ttl = millis;
+    }
+
+    // Return true if entry belongs to the current remote bundle and plugin.
+    private boolean isValid(@Nullable Entry entry) {
+        return entry != null && entry.metadata != null && entry.metadata.isValid()
+            && Comparing.equal(entry.url, m_updater.getRemoteBundle().getMetadataUrl())
+            && Comparing.equal(entry.pluginVersion, m_updater.getPluginVersion());
+    }
+
+    @Nullable
+    private Entry load() {
+        if (!m_file.isFile())
+            return null;
+
+        try (Reader reader = new InputStreamReader(
+            new FileInputStream(m_file), StandardCharsets.UTF_8)) {
+            return new Gson().fromJson(reader, Entry.class);
+        }
+        catch (IOException | JsonParseException e) {
+            LOG.info("Can't read metadata cache " + m_file, e);
+            return null;
+        }
+    }
+
+    private void save(@NotNull Entry entry) {
+        File tmp = new File(m_file.getPath() + ".tmp");
+        try {
+            try (Writer writer = new OutputStreamWriter(
+                new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                new Gson().toJson(entry, writer);
+            }
+            Files.move(tmp.toPath(), m_file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            LOG.info("Can't save metadata cache " + m_file, e);
+        }
+    }
+
+    /**
+     * Get cached entry.
+     *
+     * Cache file is read on first call.
+     *
+     * @return Entry or null if there is no valid cached metadata.
+     */
+    @Nullable
+    public synchronized Entry get() {
+        if (!m_loaded) {
+            m_entry = load();
+            m_loaded = true;
+        }
+        return isValid(m_entry) ? m_entry : null;
+    }
+
+    /**
+     * Get cached metadata.
+     *
+     * @return Metadata or null if there is no valid cached metadata.
+     */
+    @Nullable
+    public BundleMetadata getMetadata() {
+        Entry entry = get();
+        return entry == null ? null : entry.metadata;
+    }
+
+    /**
+     * Get cached metadata without disk access.
+     *
+     * It's safe to call in the EDT.
+     *
+     * @return Metadata or null if cache file is not read yet or there is
+     *         no valid cached metadata.
+     */
+    @Nullable
+    public BundleMetadata peekMetadata() {
+        if (!m_loaded)
+            return null;
+        Entry entry = m_entry;
+        return isValid(entry) ? entry.metadata : null;
+    }
+
+    /** Return true if cache file is already read. */
+    public boolean isLoaded() {
+        return m_loaded;
+    }
+
+    /**
+     * Return true if there is cached metadata which doesn't need
+     * revalidation.
+     */
+    public boolean isFresh() {
+        Entry entry = get();
+        return entry != null && entry.isFresh(m_ttl);
+    }
+
+    /**
+     * Put downloaded metadata to the cache.
+     *
+     * @param metadata Downloaded metadata.
+     * @param etag Metadata ETag or null.
+     */
+    public synchronized void put(@NotNull BundleMetadata metadata, @Nullable String etag) {
+        Entry entry = new Entry();
+        entry.url = m_updater.getRemoteBundle().getMetadataUrl();
+        entry.pluginVersion = m_updater.getPluginVersion();
+        entry.etag = etag;
+        entry.fetchedAt = System.currentTimeMillis();
+        entry.metadata = metadata;
+
+        m_entry = entry;
+        m_loaded = true;
+        save(entry);
+    }
+
+    /**
+     * Mark cached metadata as revalidated (remote side is not modified).
+     */
+    public synchronized void touch() {
+        Entry entry = get();
+        if (entry != null) {
+            entry.fetchedAt = System.currentTimeMillis();
+            save(entry);
+        }
+    }
+}
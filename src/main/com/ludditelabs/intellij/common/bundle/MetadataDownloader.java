@@ -16,25 +16,20 @@
 
 package com.ludditelabs.intellij.common.bundle;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.util.Ref;
-import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.io.HttpRequests;
 import com.ludditelabs.intellij.common.DateUtils;
 import com.ludditelabs.intellij.common.DownloadUtils;
-import com.ludditelabs.intellij.common.Utils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.*;
+import java.net.URLConnection;
 
 public class MetadataDownloader {
     protected static final Logger LOG = Logger.getInstance("ludditelabs.bundle.MetadataDownloader");
@@ -74,6 +69,22 @@ public class MetadataDownloader {
         return remote_date == 0 || remote_date > local_meta.lastModified;
     }
 
+    /**
+     * Download remote metadata.
+     *
+     * If there is cached metadata then conditional request is sent and
+     * cached metadata is returned if remote side is not modified.
+     * Downloaded metadata is put to the cache.
+     *
+     * If remote bundle uses {@link BundleIndex index} then metadata is
+     * taken from the shared index content.
+     *
+     * If there is no bundle for the preferred architecture then
+     * {@link RemoteBundle#fallbackArch() fallback} one is used.
+     *
+     * @return Remote metadata.
+     * @throws IOException on network I/O errors.
+     */
     public BundleMetadata download() throws IOException {
         RemoteBundle bundle = m_updater.getRemoteBundle();
         if (bundle == null)
@@ -82,120 +93,116 @@ public class MetadataDownloader {
         if (m_indicator != null)
             m_indicator.setText("Retrieving version info...");
 
-        String url = bundle.getMetadataUrl();
-
-        LOG.debug("Downloading ", url);
-
         try {
             m_updater.setBusy(true);
 
-            final Ref<String> last_modified = new Ref<>();
-            HttpRequests.RequestProcessor<Void> processor = new HttpRequests.RequestProcessor<Void>() {
-                @Override
-                public Void process(@NotNull HttpRequests.Request request) throws IOException {
-                    last_modified.set(request.getConnection().getHeaderField(
-                        "last-modified"));
-                    return null;
-                }
-            };
-
-            String str = DownloadUtils.downloadToString(
-                url, m_indicator, false,
-                "Can't download version info", processor);
+            if (bundle.isIndexed())
+                return downloadFromIndex(bundle);
 
-            BundleMetadata meta =  getMeta(str, last_modified.get());
-            if (!meta.isValid())
-                throw new IOException("INTERNAL ERROR: Invalid bundle metadata.");
-            return meta;
+            while (true) {
+                String arch = bundle.getArch();
+                try {
+                    return downloadMetadata(bundle);
+                }
+                catch (IOException e) {
+                    // Fall back only if metadata is missing.
+                    if (DownloadUtils.getStatusCode(e) != HttpURLConnection.HTTP_NOT_FOUND
+                        || !bundle.fallbackArch(arch))
+                        throw e;
+                }
+            }
         } finally {
             m_updater.setBusy(false);
         }
     }
 
-    /**
-     * Build version string list from the JSON object.
-     *
-     * @param data JSON object with versions as fields.
-     * @return List of ordered versions.
-     */
-    private static List<String> extractVersions(JsonObject data) {
-        List<String> versions = ContainerUtil.newArrayList();
-        Set<Map.Entry<String, JsonElement>> entries = data.entrySet();
-        for (Map.Entry<String, JsonElement> entry: entries) {
-            versions.add(entry.getKey());
+    // Get metadata from the bundle index.
+    private BundleMetadata downloadFromIndex(@NotNull RemoteBundle bundle) throws IOException {
+        BundleIndex.Content content = BundleIndex.fetch(bundle.getMetadataUrl(), m_indicator);
+
+        BundleMetadata meta;
+        while (true) {
+            String arch = bundle.getArch();
+            try {
+                meta = MetadataParser.parse(content.data, bundle.getIndexPath(),
+                    m_updater.getPluginVersion(), content.lastModified);
+                break;
+            }
+            catch (IOException e) {
+                if (!bundle.fallbackArch(arch))
+                    throw e;
+            }
         }
-        Utils.sortVersions(versions);
-        return versions;
+
+        if (!meta.isValid())
+            throw new IOException("INTERNAL ERROR: Invalid bundle metadata.");
+        m_updater.getMetadataCache().put(meta, content.etag);
+        return meta;
     }
 
-    /**
-     * Create bundle metadata from the JSON object.
-     *
-     * @param json JSON object with remote bundle metadata.
-     * @param lastModified Remote metadata last modified timestamp string.
-     * @return BundleMetadata.
-     */
-    @NotNull
-    private BundleMetadata createMetadata(JsonObject json, String pluginVersion,
-                                          String lastModified) {
-        BundleMetadata meta = new BundleMetadata();
-        meta.lastModified = DateUtils.timestampToTime(lastModified);
-        meta.dist = json.get("dist").getAsString();
-        meta.message = json.get("message").getAsString();
-        meta.version = json.get("version").getAsString();
-        meta.pluginVersion = pluginVersion;
-        meta.timestamp = json.get("timestamp").getAsString();
-
-        JsonArray changes = json.getAsJsonArray("changes");
-        if (changes != null && changes.size() > 0) {
-            meta.changes = ContainerUtil.newArrayList();
-            int sz = changes.size();
-            for (int i = 0; i < sz; ++i) {
-                String val = changes.get(i).getAsString();
-                if (val != null)
-                    meta.changes.add(val);
+    // Download metadata file of the current bundle architecture.
+    private BundleMetadata downloadMetadata(@NotNull RemoteBundle bundle) throws IOException {
+        String url = bundle.getMetadataUrl();
+        LOG.debug("Downloading ", url);
+
+        final MetadataCache cache = m_updater.getMetadataCache();
+        final MetadataCache.Entry cached = cache.get();
+        final Ref<String> last_modified = new Ref<>();
+        final Ref<String> etag = new Ref<>();
+        final Ref<Boolean> not_modified = new Ref<>(false);
+
+        HttpRequests.RequestProcessor<Void> processor = new HttpRequests.RequestProcessor<Void>() {
+            @Override
+            public Void process(@NotNull HttpRequests.Request request) throws IOException {
+                URLConnection con = request.getConnection();
+                last_modified.set(con.getHeaderField("last-modified"));
+                etag.set(con.getHeaderField("etag"));
+                not_modified.set(con instanceof HttpURLConnection
+                    && ((HttpURLConnection)con).getResponseCode()
+                    == HttpURLConnection.HTTP_NOT_MODIFIED);
+                return null;
             }
+        };
+
+        HttpRequests.ConnectionTuner tuner = null;
+        if (cached != null && cached.etag != null) {
+            tuner = new HttpRequests.ConnectionTuner() {
+                @Override
+                public void tune(@NotNull URLConnection connection) throws IOException {
+                    connection.setRequestProperty("If-None-Match", cached.etag);
+                }
+            };
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DownloadUtils.download(url, out, m_indicator, false, false,
+            "Can't download version info", processor, tuner);
+
+        if (not_modified.get() && cached != null) {
+            LOG.debug("Remote metadata is not modified");
+            cache.touch();
+            return cached.metadata;
         }
+
+        BundleMetadata meta = getMeta(out.toByteArray(), last_modified.get());
+        if (!meta.isValid())
+            throw new IOException("INTERNAL ERROR: Invalid bundle metadata.");
+        cache.put(meta, etag.get());
         return meta;
     }
 
     /**
-     * Remote metadata structure is:
-     * <pre>
-     * {@code
-     *    {
-     *      "versions": {
-     *         "x.y.z": {...}
-     *      }
-     *    }
-     * }
-     * </pre>
-     * For more info refer to s3bundle project.
+     * Parse remote metadata and select bundle for the current plugin version.
      *
-     * @param metaContent Remote metadata JSON string.
+     * @param metaContent Remote metadata JSON content (UTF-8).
      * @param lastModified Remote metadata last modified timestamp string.
      * @return BundleMetadata.
-     * @throws IOException
+     * @throws IOException if metadata is malformed or has no suitable bundle.
+     * @see MetadataParser
      */
     @NotNull
-    private BundleMetadata getMeta(String metaContent,
+    private BundleMetadata getMeta(byte[] metaContent,
                                    String lastModified) throws IOException {
-        Gson gson = new Gson();
-        JsonObject json = gson.fromJson(metaContent, JsonObject.class);
-        json = json.getAsJsonObject("versions");
-
-        if (json == null)
-            throw new IOException("Remote metadata is malformed.");
-
-        List<String> versions = extractVersions(json);
-        String match = Utils.findClosestVersion(versions, m_updater.getPluginVersion());
-        if (match == null)
-            throw new IOException("Can't find suitable bundle.");
-
-        json = json.getAsJsonObject(match);
-        if (json == null)
-            throw new IOException("INTERNAL ERROR: can't get meta by version.");
-
-        return createMetadata(json, match, lastModified);
+        return MetadataParser.parse(metaContent, m_updater.getPluginVersion(), lastModified);
     }
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.bundle;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.intellij.util.containers.ContainerUtil;
+import com.ludditelabs.intellij.common.DateUtils;
+import com.ludditelabs.intellij.common.VersionIndex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming parser of the remote metadata.
+ *
+ * Remote metadata structure is:
+ * <pre>
+ * {@code
+ *    {
+ *      "versions": {
+ *         "x.y.z": {...}
+ *      }
+ *    }
+ * }
+ * </pre>
+ * For more info refer to s3bundle project.
+ *
+ * Metadata has an entry per plugin version, but only one is required.
+ * So instead of building JSON tree of the whole content, parser collects
+ * version keys in the first pass, finds the closest version and then
+ * materializes only its entry in the second pass.
+ *
+ * Metadata may also be nested in a bigger document, like
+ * {@link BundleIndex bundle index}; in this case path to the object with
+ * "versions" field is passed to the parser.
+ */
+public class MetadataParser {
+    /**
+     * Parse remote metadata.
+     *
+     * @param content Remote metadata JSON content (UTF-8).
+     * @param pluginVersion Plugin version to find bundle for.
+     * @param lastModified Remote metadata last modified timestamp string.
+     * @return BundleMetadata.
+     * @throws IOException if metadata is malformed or has no suitable bundle.
+     */
+    @NotNull
+    public static BundleMetadata parse(@NotNull byte[] content,
+                                       @NotNull String pluginVersion,
+                                       @Nullable String lastModified) throws IOException {
+        return parse(content, new String[0], pluginVersion, lastModified);
+    }
+
+    /**
+     * Parse remote metadata nested in the given JSON document.
+     *
+     * @param content JSON content (UTF-8).
+     * @param path Names of the nested objects leading to the metadata.
+     * @param pluginVersion Plugin version to find bundle for.
+     * @param lastModified Remote metadata last modified timestamp string.
+     * @return BundleMetadata.
+     * @throws IOException if metadata is malformed or has no suitable bundle.
+     */
+    @NotNull
+    public static BundleMetadata parse(@NotNull byte[] content,
+                                       @NotNull String[] path,
+                                       @NotNull String pluginVersion,
+                                       @Nullable String lastModified) throws IOException {
+        try {
+            List<String> versions = collectVersions(content, path);
+            if (versions == null)
+                throw new IOException("Remote metadata is malformed.");
+
+            String match = new VersionIndex(versions).floor(pluginVersion);
+            if (match == null)
+                throw new IOException("Can't find suitable bundle.");
+
+            JsonObject json = readVersion(content, path, match);
+            if (json == null)
+                throw new IOException("INTERNAL ERROR: can't get meta by version.");
+
+            return createMetadata(json, match, lastModified);
+        }
+        catch (JsonParseException | IllegalStateException | NullPointerException
+            | UnsupportedOperationException | ClassCastException e) {
+            throw new IOException("Remote metadata is malformed.", e);
+        }
+    }
+
+    @NotNull
+    private static JsonReader createReader(@NotNull byte[] content) {
+        return new JsonReader(new InputStreamReader(
+            new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Move reader to the value of the given field of the current object.
+     *
+     * @return true if field is found and it's an object.
+     */
+    private static boolean seekObject(@NotNull JsonReader reader,
+                                      @NotNull String name) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT)
+            return false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals(name))
+                return reader.peek() == JsonToken.BEGIN_OBJECT;
+            reader.skipValue();
+        }
+        return false;
+    }
+
+    // Move reader to the "versions" object.
+    private static boolean seekVersions(@NotNull JsonReader reader,
+                                        @NotNull String[] path) throws IOException {
+        for (String name : path) {
+            if (!seekObject(reader, name))
+                return false;
+        }
+        return seekObject(reader, "versions");
+    }
+
+    /**
+     * First pass: collect keys of the "versions" object skipping values.
+     *
+     * @return Versions or null if there is no "versions" object.
+     */
+    @Nullable
+    private static List<String> collectVersions(@NotNull byte[] content,
+                                                @NotNull String[] path) throws IOException {
+        try (JsonReader reader = createReader(content)) {
+            if (!seekVersions(reader, path))
+                return null;
+
+            List<String> versions = new ArrayList<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                versions.add(reader.nextName());
+                reader.skipValue();
+            }
+            return versions;
+        }
+    }
+
+    /**
+     * Second pass: materialize entry of the given version.
+     *
+     * @return JSON object or null if not found.
+     */
+    @Nullable
+    private static JsonObject readVersion(@NotNull byte[] content,
+                                          @NotNull String[] path,
+                                          @NotNull String version) throws IOException {
+        try (JsonReader reader = createReader(content)) {
+            if (!seekVersions(reader, path) || !seekObject(reader, version))
+                return null;
+            return new Gson().fromJson(reader, JsonObject.class);
+        }
+    }
+
+    /**
+     * Create bundle metadata from the JSON object.
+     *
+     * @param json JSON object with remote bundle metadata.
+     * @param pluginVersion Plugin version of the entry.
+     * @param lastModified Remote metadata last modified timestamp string.
+     * @return BundleMetadata.
+     */
+    @NotNull
+    private static BundleMetadata createMetadata(JsonObject json, String pluginVersion,
+                                                 String lastModified) {
+        BundleMetadata meta = new BundleMetadata();
+        meta.lastModified = DateUtils.timestampToTime(lastModified);
+        meta.dist = json.get("dist").getAsString();
+        meta.message = json.get("message").getAsString();
+        meta.version = json.get("version").getAsString();
+        meta.pluginVersion = pluginVersion;
+        meta.timestamp = json.get("timestamp").getAsString();
+
+        JsonArray changes = json.getAsJsonArray("changes");
+        if (changes != null && changes.size() > 0) {
+            meta.changes = ContainerUtil.newArrayList();
+            int sz = changes.size();
+            for (int i = 0; i < sz; ++i) {
+                String val = changes.get(i).getAsString();
+                if (val != null)
+                    meta.changes.add(val);
+            }
+        }
+
+        JsonElement components = json.get("components");
+        if (components != null && components.isJsonArray()) {
+            meta.components = new Gson().fromJson(components,
+                new TypeToken<ArrayList<BundleComponent>>(){}.getType());
+        }
+        return meta;
+    }
+}
@@ -19,6 +19,8 @@ package com.ludditelabs.intellij.common.bundle;
 import com.google.gson.Gson;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
 import com.ludditelabs.intellij.common.DownloadUtils;
 import com.ludditelabs.intellij.common.Utils;
 import com.ludditelabs.intellij.common.ZipUtils;
@@ -29,10 +31,15 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
 
 public class PackageDownloader {
     protected static final Logger LOG = Logger.getInstance("ludditelabs.bundle.PackageDownloader");
 
+    // Disk space to keep free in addition to the required one.
+    private static final long DISK_RESERVE = 16L * 1024 * 1024;
+
     @NotNull private final Updater m_updater;
     @NotNull private final BundleMetadata m_metadata;
     @Nullable private final ProgressIndicator m_indicator;
@@ -45,11 +52,45 @@ public class PackageDownloader {
         m_indicator = indicator;
     }
 
-    // TODO: use FileUtil.createTempFile() instead of File.createTempFile
-    private File getTempFilename() throws IOException {
-        String[] parts = m_metadata.dist.split(".");
-        String ext = parts.length > 1 ? parts[1] : "";
-        return File.createTempFile("bundle", ext);
+    /**
+     * Downloaded package archive of the bundle.
+     *
+     * Package is downloaded next to the bundle dir, so both the archive
+     * and the unpacked bundle are on the same disk.
+     *
+     * @param bundlePath Local bundle path.
+     * @return Archive file.
+     */
+    @NotNull
+    public static File getArchiveFile(@NotNull String bundlePath) {
+        return new File(bundlePath + ".download");
+    }
+
+    private File getArchiveFile() throws IOException {
+        File file = getArchiveFile(m_updater.getLocalBundle().getBundlePath());
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Unable to create directory: '" + dir + "'!");
+        return file;
+    }
+
+    // Return usable space of the disk where given file is (or will be) located.
+    private static long getUsableSpace(@NotNull File file) {
+        File dir = file.getAbsoluteFile();
+        while (dir != null && !dir.exists())
+            dir = dir.getParentFile();
+        return dir == null ? Long.MAX_VALUE : dir.getUsableSpace();
+    }
+
+    private static void checkFreeSpace(@NotNull File file, long required) throws IOException {
+        long usable = getUsableSpace(file);
+        if (required > 0 && usable < required + DISK_RESERVE) {
+            throw new IOException(String.format(
+                "Not enough disk space in '%s': %s required, %s available.",
+                file.getParent(),
+                StringUtil.formatFileSize(required + DISK_RESERVE),
+                StringUtil.formatFileSize(usable)));
+        }
     }
 
     private String doDownload() throws IOException {
@@ -77,38 +118,258 @@ public class PackageDownloader {
         if (m_indicator != null)
             m_indicator.setText("Downloading platform bundle");
 
-        final File file = getTempFilename();
+        final File file = getArchiveFile();
         final String filename = file.getAbsolutePath();
 
         LOG.debug("Downloading ", url, " -> ",filename);
 
+        // Fail early if there is no space for the archive, size is taken
+        // from the response headers. Unknown size is not an error,
+        // download will fail if so.
+        if (file.exists())
+            FileUtil.delete(file);
+
         DownloadUtils.downloadToFile(
             url, file, m_indicator,
             true,
             "Can't download file",
-            null);
+            null,
+            new DownloadUtils.ResponseListener() {
+                @Override
+                public void started(long contentLength) throws IOException {
+                    checkFreeSpace(file, contentLength);
+                }
+            });
 
         return filename;
     }
 
-    private void doUnpack(String fileName, String outPath) throws IOException {
+    // Save metadata with the list of installed components to the bundle dir.
+    private void saveMetadata(String outPath,
+                              @Nullable Collection<String> installed) throws IOException {
+        File meta_file = Paths.get(outPath, "metadata.json").toFile();
+        LOG.debug("Saving ", meta_file.getAbsolutePath());
+
+        // Save a copy to keep given metadata unchanged.
+        Gson gson = new Gson();
+        BundleMetadata meta = gson.fromJson(
+            gson.toJson(m_metadata), BundleMetadata.class);
+        meta.installedComponents = installed == null
+            ? null : new ArrayList<>(installed);
+
+        try (FileWriter writer = new FileWriter(meta_file)) {
+            gson.toJson(meta, writer);
+        }
+    }
+
+    // Return names of components to install or null if all are required.
+    @Nullable
+    private Collection<String> getComponentsToInstall() {
+        Collection<String> enabled = m_updater.getEnabledComponents();
+        if (enabled == null || !m_metadata.hasComponents())
+            return null;
+
+        Collection<String> result = new ArrayList<>();
+        for (BundleComponent component : m_metadata.components) {
+            if (enabled.contains(component.getName()))
+                result.add(component.getName());
+        }
+        return result;
+    }
+
+    /**
+     * Choose install strategy depending on the available disk space.
+     *
+     * Atomic install needs space for the whole unpacked bundle while
+     * in-place one needs space only for the largest file.
+     */
+    @NotNull
+    private InstallStrategy chooseStrategy(@NotNull ZipUtils.ArchiveStats stats,
+                                           @NotNull File outDir) throws IOException {
+        InstallStrategy strategy = m_updater.getInstallStrategy();
+
+        if (strategy == InstallStrategy.ATOMIC || !outDir.exists()) {
+            checkFreeSpace(outDir, stats.totalSize);
+            return InstallStrategy.ATOMIC;
+        }
+        else if (strategy == InstallStrategy.IN_PLACE) {
+            checkFreeSpace(outDir, stats.largestSize);
+            return strategy;
+        }
+
+        if (getUsableSpace(outDir) >= stats.totalSize + DISK_RESERVE)
+            return InstallStrategy.ATOMIC;
+
+        LOG.info(String.format(
+            "Not enough disk space for atomic install (%s), updating in place.",
+            StringUtil.formatFileSize(stats.totalSize)));
+        checkFreeSpace(outDir, stats.largestSize);
+        return InstallStrategy.IN_PLACE;
+    }
+
+    /**
+     * Unpack the package recording progress in the journal.
+     *
+     * Phases already completed according to the journal are skipped.
+     */
+    private void doUnpack(@NotNull String fileName, @NotNull String outPath,
+                          @NotNull InstallJournal journal) throws IOException {
         File zip_file = new File(fileName);
         File out_dir = new File(outPath);
+        File new_dir = ZipUtils.getNewDir(out_dir);
 
         LOG.debug("Unpacking ", fileName, " -> ", outPath);
 
         if (m_indicator != null)
             m_indicator.setText("Unpacking platform bundle");
 
-        ZipUtils.unzipAtomic(zip_file, out_dir, m_indicator, false);
+        Collection<String> components = journal.components;
+        ComponentFilter filter = components == null
+            ? null : new ComponentFilter(m_metadata, components, true);
 
-        File meta_file = Paths.get(outPath, "metadata.json").toFile();
-        LOG.debug("Saving ", meta_file.getAbsolutePath());
+        if (journal.phase.compareTo(InstallJournal.Phase.VERIFIED) < 0) {
+            ZipUtils.ArchiveStats stats;
+            try {
+                stats = ZipUtils.getStats(zip_file, true, filter);
+            }
+            catch (IOException e) {
+                // Broken archive can't be resumed, start from scratch next time.
+                journal.delete();
+                throw new IOException("Downloaded package is corrupted.", e);
+            }
+            journal.totalEntries = stats.entries;
+            journal.strategy = chooseStrategy(stats, out_dir);
+            journal.setPhase(InstallJournal.Phase.VERIFIED);
+        }
 
-        try (FileWriter writer = new FileWriter(meta_file)) {
-            Gson gson = new Gson();
-            gson.toJson(m_metadata, writer);
+        final InstallJournal progress = journal;
+        if (journal.phase.compareTo(InstallJournal.Phase.EXTRACTED) < 0) {
+            int skip = journal.phase == InstallJournal.Phase.EXTRACTING
+                ? journal.extractedEntries : 0;
+            journal.setPhase(InstallJournal.Phase.EXTRACTING);
+
+            if (journal.strategy == InstallStrategy.IN_PLACE) {
+                // Drop metadata first: the bundle is not valid until
+                // all files are updated. Unchanged files are kept,
+                // so restarting is cheap.
+                FileUtil.delete(new File(out_dir, "metadata.json"));
+                ZipUtils.unzipInPlace(zip_file, out_dir, m_indicator, false, filter);
+            }
+            else {
+                if (skip == 0 && new_dir.exists())
+                    FileUtil.delete(new_dir);
+                else if (skip > 0)
+                    LOG.info(String.format("Resuming extraction from entry %d of %d",
+                        skip, journal.totalEntries));
+
+                ZipUtils.unzipResumable(zip_file, new_dir, m_indicator, false,
+                    filter, skip, new ZipUtils.ProgressListener() {
+                        @Override
+                        public void processed(int count, int total) throws IOException {
+                            progress.checkpoint(count, total);
+                        }
+                    });
+            }
+            journal.setPhase(InstallJournal.Phase.EXTRACTED);
         }
+
+        if (journal.strategy != InstallStrategy.IN_PLACE) {
+            journal.setPhase(InstallJournal.Phase.SWAPPING);
+            ZipUtils.swapDirs(new_dir, out_dir);
+        }
+
+        saveMetadata(outPath, components);
+    }
+
+    /**
+     * Download (if required) and unpack the package.
+     *
+     * If there is a journal of the same interrupted install then it's
+     * continued: downloaded archive and extracted files are reused.
+     */
+    private void doInstall(@NotNull String outPath,
+                           @Nullable Collection<String> components) throws IOException {
+        InstallJournal journal = InstallJournal.load(outPath);
+
+        if (journal != null && !journal.isSameInstall(m_metadata, components)) {
+            LOG.info("Discarding journal of another install");
+            discard(outPath);
+            journal = null;
+        }
+
+        String filename;
+        if (journal != null && (journal.hasArchive()
+            || journal.phase.compareTo(InstallJournal.Phase.EXTRACTED) >= 0)) {
+            LOG.info("Resuming interrupted install from phase " + journal.phase);
+            filename = journal.archive;
+        }
+        else {
+            journal = InstallJournal.create(outPath, m_metadata, components);
+            journal.save();
+
+            filename = doDownload();
+            journal.archive = filename;
+            journal.archiveSize = new File(filename).length();
+            journal.ownsArchive = true;
+            journal.setPhase(InstallJournal.Phase.DOWNLOADED);
+        }
+
+        doUnpack(filename, outPath, journal);
+
+        // Archive is not needed anymore, release disk space ASAP.
+        // Caller's archive (see unpack()) is left untouched.
+        if (journal.ownsArchive)
+            FileUtil.delete(new File(filename));
+        journal.delete();
+    }
+
+    /**
+     * Delete leftovers of the interrupted install.
+     *
+     * If bundle directory was moved away but new one is not in place
+     * then the old one is restored.
+     *
+     * @param bundlePath Local bundle path.
+     */
+    public static void discard(@NotNull String bundlePath) {
+        File out_dir = new File(bundlePath);
+        File old_dir = ZipUtils.getOldDir(out_dir);
+
+        if (!out_dir.exists() && old_dir.exists()) {
+            LOG.info("Restoring " + out_dir);
+            FileUtil.moveDirWithContent(old_dir, out_dir);
+        }
+
+        FileUtil.delete(old_dir);
+        FileUtil.delete(ZipUtils.getNewDir(out_dir));
+        FileUtil.delete(getArchiveFile(bundlePath));
+        FileUtil.delete(InstallJournal.getFile(bundlePath));
+    }
+
+    private void doAddComponents(String fileName, String outPath,
+                                 @NotNull Collection<String> names) throws IOException {
+        File zip_file = new File(fileName);
+        File out_dir = new File(outPath);
+
+        LOG.debug("Unpacking components ", names, " of ", fileName, " -> ", outPath);
+
+        if (m_indicator != null)
+            m_indicator.setText("Unpacking platform bundle components");
+
+        // Extract only files of the given components on top of
+        // the installed bundle.
+        ZipUtils.unzip(zip_file, out_dir, m_indicator, false, true, false,
+            new ComponentFilter(m_metadata, names, false));
+
+        Collection<String> installed = null;
+        if (m_metadata.installedComponents != null) {
+            installed = new ArrayList<>(m_metadata.installedComponents);
+            for (String name : names) {
+                if (!installed.contains(name))
+                    installed.add(name);
+            }
+        }
+        saveMetadata(outPath, installed);
     }
 
     public String download() throws IOException {
@@ -121,10 +382,26 @@ public class PackageDownloader {
         }
     }
 
+    /**
+     * Unpack the package archive provided by the caller.
+     *
+     * The archive stays owned by the caller: it's never deleted, even if
+     * the interrupted unpacking is resumed later.
+     *
+     * @param fileName Package archive.
+     * @param outPath Local bundle path.
+     * @throws IOException on I/O errors.
+     */
     public void unpack(String fileName, String outPath) throws IOException {
         try {
             m_updater.setBusy(true);
-            doUnpack(fileName, outPath);
+            InstallJournal journal = InstallJournal.create(
+                outPath, m_metadata, getComponentsToInstall());
+            journal.archive = fileName;
+            journal.archiveSize = new File(fileName).length();
+            journal.setPhase(InstallJournal.Phase.DOWNLOADED);
+            doUnpack(fileName, outPath, journal);
+            journal.delete();
         }
         finally {
             m_updater.setBusy(false);
@@ -134,8 +411,51 @@ public class PackageDownloader {
     public void downloadAndUnpack(String outPath) throws IOException {
         try {
             m_updater.setBusy(true);
-            doUnpack(doDownload(), outPath);
+            doInstall(outPath, getComponentsToInstall());
+        } finally {
+            m_updater.setBusy(false);
+        }
+    }
+
+    /**
+     * Continue interrupted install recorded in the journal.
+     *
+     * Metadata passed to the constructor must be the journal metadata.
+     *
+     * @param outPath Local bundle path.
+     * @param journal Install journal.
+     * @throws IOException on I/O errors.
+     */
+    public void resume(String outPath, @NotNull InstallJournal journal) throws IOException {
+        try {
+            m_updater.setBusy(true);
+            doInstall(outPath, journal.components);
+        } finally {
+            m_updater.setBusy(false);
+        }
+    }
+
+    /**
+     * Download package and extract given components to the already
+     * installed bundle.
+     *
+     * Metadata passed to the constructor must be the installed bundle
+     * metadata.
+     *
+     * @param outPath Installed bundle path.
+     * @param names Names of components to add.
+     * @throws IOException on I/O errors.
+     */
+    public void downloadAndAddComponents(String outPath,
+                                         @NotNull Collection<String> names) throws IOException {
+        String filename = null;
+        try {
+            m_updater.setBusy(true);
+            filename = doDownload();
+            doAddComponents(filename, outPath, names);
         } finally {
+            if (filename != null)
+                FileUtil.delete(new File(filename));
             m_updater.setBusy(false);
         }
     }
@@ -16,23 +16,52 @@
 
 package com.ludditelabs.intellij.common.bundle;
 
-import com.intellij.execution.process.ProcessOutput;
+import com.intellij.ide.util.PropertiesComponent;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.SystemInfo;
-import com.ludditelabs.intellij.common.Utils;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
 
-// TODO: improve me if possible.
 /**
  * Detect if platform is supported.
  *
  * Currently the following platforms are supported:
  *
  * <ul>
- *     <li>Linux 64bit</li>
- *     <li>MacOS 64bit, >= 10.9</li>
- *     <li>Windows 64bit, >= 7</li>
+ *     <li>Linux x86_64, aarch64</li>
+ *     <li>MacOS x86_64 (>= 10.9), aarch64</li>
+ *     <li>Windows x86_64 (>= 7), aarch64</li>
  * </ul>
+ *
+ * On aarch64 native bundles are used if published, see
+ * {@link RemoteBundle#getArchCandidates()}.
+ *
+ * Machine architecture is detected inside the JVM (system properties,
+ * {@code /proc/sys/kernel/arch}, environment) without spawning processes. Result
+ * is persisted and reused until OS or JVM architecture is changed.
  */
 public class PlatformChecker {
+    protected static final Logger LOG = Logger.getInstance("ludditelabs.bundle.PlatformChecker");
+
+    /** Machine architectures. */
+    public static final String ARCH_X86_64 = "x86_64";
+    public static final String ARCH_X86 = "x86";
+    public static final String ARCH_AARCH64 = "aarch64";
+    public static final String ARCH_ARM = "arm";
+    public static final String ARCH_PPC64LE = "ppc64le";
+    public static final String ARCH_S390X = "s390x";
+    public static final String ARCH_UNKNOWN = "unknown";
+
+    private static final String ARCH_KEY = "ludditelabs.bundle.platform.arch";
+    private static final String ARCH_ID_KEY = "ludditelabs.bundle.platform.id";
+
+    private static volatile String s_arch = null;
+
     private boolean m_needCheck = true;
     private boolean m_isSupported = false;
 
@@ -40,39 +69,137 @@ public class PlatformChecker {
 
     }
 
+    /**
+     * Normalize architecture name.
+     *
+     * @param name Architecture name like {@code os.arch} or
+     *             {@code PROCESSOR_ARCHITECTURE} value.
+     * @return One of ARCH_* constants.
+     */
+    @NotNull
+    public static String normalizeArch(@Nullable String name) {
+        if (name == null)
+            return ARCH_UNKNOWN;
+
+        String arch = name.trim().toLowerCase(Locale.US);
+        if (arch.equals("amd64") || arch.equals("x86_64") || arch.equals("x64")
+            || arch.equals("em64t") || arch.equals("ia32e"))
+            return ARCH_X86_64;
+        if (arch.equals("aarch64") || arch.equals("arm64") || arch.startsWith("armv8"))
+            return ARCH_AARCH64;
+        if (arch.equals("x86") || arch.matches("i[3-6]86") || arch.equals("ia32"))
+            return ARCH_X86;
+        if (arch.startsWith("arm"))
+            return ARCH_ARM;
+        if (arch.equals("ppc64le"))
+            return ARCH_PPC64LE;
+        if (arch.equals("s390x"))
+            return ARCH_S390X;
+        return ARCH_UNKNOWN;
+    }
+
+    // Linux: 32bit JVM may run on 64bit kernel, so check kernel arch too.
+    // CPU flags are not used: 64bit CPU may run 32bit kernel.
+    @NotNull
+    private static String detectLinuxArch(@NotNull String jvmArch) {
+        if (!jvmArch.equals(ARCH_X86) && !jvmArch.equals(ARCH_ARM))
+            return jvmArch;
+
+        // Same as 'uname -m'.
+        File kernel_arch = new File("/proc/sys/kernel/arch");
+        if (!kernel_arch.isFile())
+            return jvmArch;
+
+        try {
+            String arch = normalizeArch(FileUtil.loadFile(kernel_arch));
+            if (!arch.equals(ARCH_UNKNOWN))
+                return arch;
+        }
+        catch (IOException e) {
+            LOG.debug(e);
+        }
+        return jvmArch;
+    }
+
+    // Windows: 32bit JVM gets real architecture in PROCESSOR_ARCHITEW6432.
+    @NotNull
+    private static String detectWindowsArch(@NotNull String jvmArch) {
+        String wow_arch = normalizeArch(System.getenv("PROCESSOR_ARCHITEW6432"));
+        if (!wow_arch.equals(ARCH_UNKNOWN))
+            return wow_arch;
+
+        String arch = normalizeArch(System.getenv("PROCESSOR_ARCHITECTURE"));
+        if (!arch.equals(ARCH_UNKNOWN))
+            return arch;
+
+        return System.getenv("ProgramFiles(x86)") != null ? ARCH_X86_64 : jvmArch;
+    }
+
+    /**
+     * Detect machine architecture without using persisted value.
+     *
+     * @return One of ARCH_* constants.
+     */
+    @NotNull
+    public static String detectArch() {
+        String jvm_arch = normalizeArch(System.getProperty("os.arch"));
+        if (SystemInfo.isLinux)
+            return detectLinuxArch(jvm_arch);
+        else if (SystemInfo.isWindows)
+            return detectWindowsArch(jvm_arch);
+        return jvm_arch;
+    }
+
+    // Persisted value is valid only for the same OS and JVM.
+    @NotNull
+    private static String getArchId() {
+        return System.getProperty("os.name") + "|" + System.getProperty("os.version")
+            + "|" + System.getProperty("os.arch");
+    }
+
+    /**
+     * Machine architecture.
+     *
+     * It's detected once and persisted, so next IDE starts reuse it.
+     *
+     * @return One of ARCH_* constants.
+     */
+    @NotNull
+    public static String getArch() {
+        String arch = s_arch;
+        if (arch != null)
+            return arch;
+
+        PropertiesComponent props = PropertiesComponent.getInstance();
+        String id = getArchId();
+        arch = props.getValue(ARCH_KEY);
+
+        if (arch == null || !id.equals(props.getValue(ARCH_ID_KEY))) {
+            arch = detectArch();
+            props.setValue(ARCH_KEY, arch);
+            props.setValue(ARCH_ID_KEY, id);
+            LOG.debug("Detected platform arch: " + arch);
+        }
+
+        s_arch = arch;
+        return arch;
+    }
+
     private boolean doCheck() {
+        String arch = getArch();
+
         if (SystemInfo.isLinux) {
-            // Get linux kernel arch
-            ProcessOutput p = Utils.runCheckedProcess("uname", "-m");
-            if (p != null) {
-                String out = p.getStdout();
-                if (out.contains("x86_64") || out.contains("x64"))
-                    return true;
-            }
+            return arch.equals(ARCH_X86_64) || arch.equals(ARCH_AARCH64);
         }
         else if (SystemInfo.isMac) {
-            // Try to run 'uname -m' like for linux;
-            // if failed then check OS version.
-            ProcessOutput p = Utils.runCheckedProcess("uname", "-m");
-            if (p == null) {
-                // 10.7 (Lion) was last supported 32bit arch, but we build
-                // platform bundles with 10.9, so this is min required OS.
-                if (SystemInfo.isOsVersionAtLeast("10.9"))
-                    return true;
-            }
-            else {
-                String out = p.getStdout();
-                if (out.contains("x86_64") || out.contains("x64"))
-                    return true;
-            }
+            // 10.7 (Lion) was last supported 32bit arch, but we build
+            // platform bundles with 10.9, so this is min required OS.
+            // Apple Silicon requires 11.0, so no need to check version.
+            return arch.equals(ARCH_AARCH64)
+                || (arch.equals(ARCH_X86_64) && SystemInfo.isOsVersionAtLeast("10.9"));
         }
         else if (SystemInfo.isWin7OrNewer) {
-            String arch = System.getenv("PROCESSOR_ARCHITECTURE");
-            String wow_arch = System.getenv("PROCESSOR_ARCHITEW6432");
-            String pfx86 = System.getenv("ProgramFiles(x86)");
-            return (arch != null && arch.endsWith("64"))
-                || (wow_arch != null && wow_arch.endsWith("64"))
-                || pfx86 != null;
+            return arch.equals(ARCH_X86_64) || arch.equals(ARCH_AARCH64);
         }
 
         return false;
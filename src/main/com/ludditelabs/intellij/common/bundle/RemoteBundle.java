@@ -17,11 +17,16 @@
 package com.ludditelabs.intellij.common.bundle;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
 import com.ludditelabs.intellij.common.Utils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 
 /**
@@ -38,17 +43,31 @@ import java.net.URISyntaxException;
  *         It's URL is provided by the metadata.
  *     </li>
  * </ul>
+ *
+ * Optionally metadata may be taken from the aggregated
+ * {@link BundleIndex bundle index} shared by several bundles.
  */
 public class RemoteBundle extends Bundle {
     protected static final Logger LOG = Logger.getInstance("ludditelabs.bundle");
 
-    private String m_arch = "64bit";
+    /** Bundle architectures. */
+    public static final String ARCH_X64 = "64bit";
+    public static final String ARCH_ARM64 = "arm64";
+
+    // Architecture is resolved on first use, see ensureArch().
+    @Nullable private String m_arch = null;
     private String m_baseUrl;
     private String m_metadataUrl = null;
+    @Nullable private String m_indexUrl = null;
+    @Nullable private String m_indexName = null;
 
     /**
      * Construct bundle.
      *
+     * Bundle architecture is the native one for the current machine,
+     * see {@link #getArchCandidates()}. It's detected on first use, so
+     * construction doesn't perform any I/O.
+     *
      * @param baseUrl Base url for the bundle. It used to build metadata and
      *                archive urls.
      * @param displayName Bundle display name.
@@ -57,40 +76,153 @@ public class RemoteBundle extends Bundle {
         super(displayName);
 
         m_baseUrl = baseUrl;
-        String filename = getMetadataName();
+    }
 
-        try {
-            URI uri = new URI(m_baseUrl);
-            m_metadataUrl = uri.resolve(filename).toString();
-        }
-        catch (URISyntaxException e) {
-            LOG.error(e);
-        }
+    // Detect native architecture if it's not set yet.
+    // Must be called under the lock.
+    private void ensureArch() {
+        if (m_arch == null)
+            setArch(getArchCandidates().get(0));
     }
 
     // Helper method to construct metadata file name
     // based on current runtime environment.
     // See also s3bundle repo: https://bitbucket.org/ludditelabs/s3bundle.
-    // NOTE: Only 64bit arch is supported.
     private String getMetadataName() {
         return String.format("%s/%s/meta.json", Utils.getPlatform(), m_arch);
     }
 
+    /**
+     * Bundle architectures which may run on the current machine,
+     * the most preferred first.
+     *
+     * Native arm64 bundles are preferred on ARM machines. MacOS and Windows
+     * may fall back to 64bit (x86_64) bundles running under emulation;
+     * Linux doesn't emulate x86_64, so there is no fallback.
+     */
+    @NotNull
+    public static List<String> getArchCandidates() {
+        String arch = PlatformChecker.getArch();
+        if (arch.equals(PlatformChecker.ARCH_AARCH64)) {
+            if (SystemInfo.isMac || SystemInfo.isWindows)
+                return Arrays.asList(ARCH_ARM64, ARCH_X64);
+            return Collections.singletonList(ARCH_ARM64);
+        }
+        return Collections.singletonList(ARCH_X64);
+    }
+
+    /**
+     * Switch to the next architecture candidate.
+     *
+     * It's used if remote side has no bundle for the current architecture.
+     *
+     * @return true if architecture is switched, false if there are no
+     *         more candidates.
+     */
+    public synchronized boolean fallbackArch() {
+        ensureArch();
+        return fallbackArch(m_arch);
+    }
+
+    /**
+     * Switch to the next candidate after the given architecture.
+     *
+     * If architecture is already switched by another thread then nothing
+     * is changed, so concurrent failed requests skip only one candidate.
+     *
+     * @param failedArch Architecture which has no bundle.
+     * @return true if architecture is switched or current one differs
+     *         from the given, false if there are no more candidates.
+     */
+    public synchronized boolean fallbackArch(@NotNull String failedArch) {
+        ensureArch();
+        if (!failedArch.equals(m_arch))
+            return true;
+
+        List<String> candidates = getArchCandidates();
+        int idx = candidates.indexOf(m_arch);
+        if (idx == -1 || idx + 1 >= candidates.size())
+            return false;
+
+        LOG.info(String.format("No %s bundle for %s, falling back to %s",
+            m_arch, getDisplayName(), candidates.get(idx + 1)));
+        setArch(candidates.get(idx + 1));
+        return true;
+    }
+
     /** Base URL for the bundle .*/
     public String getBaseUrl() {
         return m_baseUrl;
     }
 
-    /** Metadata URL .*/
-    public String getMetadataUrl() {
+    /**
+     * Metadata URL.
+     *
+     * If bundle index is used then it's the index URL.
+     */
+    public synchronized String getMetadataUrl() {
+        if (m_indexUrl != null)
+            return m_indexUrl;
+        ensureArch();
         return m_metadataUrl;
     }
 
-    public String getArch() {
+    public synchronized String getArch() {
+        ensureArch();
         return m_arch;
     }
 
-    public void setArch(String arch) {
+    /**
+     * Set bundle architecture.
+     *
+     * @param arch Architecture name, like {@link #ARCH_X64}.
+     */
+    public synchronized void setArch(String arch) {
         m_arch = arch;
+        try {
+            URI uri = new URI(m_baseUrl);
+            m_metadataUrl = uri.resolve(getMetadataName()).toString();
+        }
+        catch (URISyntaxException e) {
+            LOG.error(e);
+        }
+    }
+
+    /**
+     * Take metadata from the aggregated bundle index.
+     *
+     * @param indexUrl Index URL or null to use {@code <baseUrl>/index.json}.
+     * @param bundleName Name of the bundle in the index.
+     * @see BundleIndex
+     */
+    public synchronized void setIndex(@Nullable String indexUrl, @NotNull String bundleName) {
+        if (indexUrl == null) {
+            try {
+                indexUrl = new URI(m_baseUrl).resolve("index.json").toString();
+            }
+            catch (URISyntaxException e) {
+                LOG.error(e);
+                return;
+            }
+        }
+        m_indexUrl = indexUrl;
+        m_indexName = bundleName;
+    }
+
+    /** Return true if metadata is taken from the bundle index. */
+    public synchronized boolean isIndexed() {
+        return m_indexUrl != null;
+    }
+
+    /**
+     * Path to the bundle metadata in the index:
+     * {@code bundles.<name>.<os>/<arch>}.
+     */
+    @NotNull
+    public synchronized String[] getIndexPath() {
+        ensureArch();
+        return new String[] {
+            "bundles", String.valueOf(m_indexName), Utils.getPlatform() + "/" + m_arch
+        };
     }
 }
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.bundle;
+
+import com.intellij.ide.IdeEventQueue;
+import com.intellij.ide.PowerSaveMode;
+import com.intellij.ide.util.PropertiesComponent;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.util.Comparing;
+import com.intellij.util.Consumer;
+import com.intellij.util.concurrency.JobScheduler;
+import com.ludditelabs.intellij.common.DateUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Background scheduler of the update checks.
+ *
+ * Features:
+ * <ul>
+ *     <li>Intervals are randomized (jitter) to spread load on the
+ *         metadata server.</li>
+ *     <li>Interval grows (backoff) while remote bundle is not changed and
+ *         resets on new version.</li>
+ *     <li>Base interval is derived from the release cadence: dates of the
+ *         seen bundle versions are stored and the median distance between
+ *         releases is used.</li>
+ *     <li>Checks are deferred while IDE is indexing, user is active, power
+ *         save mode is on or the updater is busy.</li>
+ * </ul>
+ */
+public class UpdateCheckScheduler {
+    protected static final Logger LOG = Logger.getInstance("ludditelabs.bundle.UpdateCheckScheduler");
+
+    private static final long MIN_INTERVAL = TimeUnit.HOURS.toMillis(1);
+    private static final long MAX_INTERVAL = TimeUnit.DAYS.toMillis(3);
+    private static final long DEFAULT_INTERVAL = TimeUnit.HOURS.toMillis(12);
+    private static final long MIN_START_DELAY = TimeUnit.MINUTES.toMillis(2);
+    private static final long MAX_START_DELAY = TimeUnit.MINUTES.toMillis(15);
+    private static final long DEFER_DELAY = TimeUnit.MINUTES.toMillis(5);
+    // IDE must be idle at least this time to run a check.
+    private static final long MIN_IDLE_TIME = TimeUnit.SECONDS.toMillis(30);
+    // Check interval is this fraction of the release interval.
+    private static final int CADENCE_DIVIDER = 4;
+    private static final double BACKOFF_FACTOR = 1.5;
+    private static final double MAX_BACKOFF = 8;
+    private static final double JITTER = 0.2;
+    private static final int HISTORY_SIZE = 10;
+    private static final String HISTORY_KEY = "ludditelabs.bundle.releases.";
+    private static final String HISTORY_SEP = "|";
+
+    @NotNull private final Updater m_updater;
+    @NotNull private final Consumer<BundleMetadata> m_consumer;
+    @NotNull private final Random m_random = new Random();
+    @Nullable private ScheduledFuture<?> m_future = null;
+    private double m_backoff = 1;
+    @Nullable private String m_lastVersion = null;
+    private long m_lastCheck = 0;
+
+    /**
+     * Construct scheduler.
+     *
+     * @param updater Updater to check.
+     * @param consumer Consumer of the changed remote metadata. It will be
+     *                 called in the EDT thread.
+     */
+    public UpdateCheckScheduler(@NotNull Updater updater,
+                                @NotNull Consumer<BundleMetadata> consumer) {
+        m_updater = updater;
+        m_consumer = consumer;
+    }
+
+    /**
+     * Start scheduled checks.
+     *
+     * First check is performed after random delay to not compete with
+     * IDE startup.
+     */
+    public synchronized void start() {
+        m_updater.getLocalBundle().loadAsync().whenComplete(
+            new BiConsumer<LocalBundle.Snapshot, Throwable>() {
+                @Override
+                public void accept(LocalBundle.Snapshot snapshot, Throwable e) {
+                    if (snapshot != null && snapshot.getMetadata() != null)
+                        addToHistory(snapshot.getMetadata());
+                }
+            });
+
+        if (m_future == null)
+            schedule(MIN_START_DELAY + (long)(m_random.nextDouble()
+                * (MAX_START_DELAY - MIN_START_DELAY)));
+    }
+
+    /**
+     * Stop scheduled checks.
+     */
+    public synchronized void stop() {
+        if (m_future != null) {
+            m_future.cancel(false);
+            m_future = null;
+        }
+    }
+
+    /** Return true if checks are scheduled. */
+    public synchronized boolean isRunning() {
+        return m_future != null;
+    }
+
+    /** Time of the last check in milliseconds or 0. */
+    public synchronized long getLastCheckTime() {
+        return m_lastCheck;
+    }
+
+    /**
+     * Base check interval derived from the release history.
+     *
+     * @return Interval in milliseconds.
+     */
+    public long getBaseInterval() {
+        List<Long> dates = new ArrayList<>();
+        for (String item : loadHistory()) {
+            long date = parseDate(item.substring(item.indexOf(HISTORY_SEP) + 1));
+            if (date != 0)
+                dates.add(date);
+        }
+
+        if (dates.size() < 2)
+            return DEFAULT_INTERVAL;
+
+        Collections.sort(dates);
+        List<Long> intervals = new ArrayList<>();
+        for (int i = 1; i < dates.size(); ++i)
+            intervals.add(dates.get(i) - dates.get(i - 1));
+        Collections.sort(intervals);
+
+        long median = intervals.get(intervals.size() / 2);
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, median / CADENCE_DIVIDER));
+    }
+
+    // Next interval with backoff and jitter.
+    private synchronized long getNextInterval() {
+        long interval = Math.min(MAX_INTERVAL, (long)(getBaseInterval() * m_backoff));
+        return jitter(interval);
+    }
+
+    private long jitter(long interval) {
+        return (long)(interval * (1 + (m_random.nextDouble() * 2 - 1) * JITTER));
+    }
+
+    private synchronized void schedule(long delay) {
+        LOG.debug("Next update check in " + TimeUnit.MILLISECONDS.toMinutes(delay) + " min");
+        m_future = JobScheduler.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Reschedule if scheduler is not stopped meanwhile.
+    private synchronized void reschedule(long delay) {
+        if (m_future != null)
+            schedule(delay);
+    }
+
+    /**
+     * Return true if check may be performed now.
+     */
+    protected boolean canCheckNow() {
+        if (m_updater.isBusy() || PowerSaveMode.isEnabled())
+            return false;
+
+        if (IdeEventQueue.getInstance().getIdleTime() < MIN_IDLE_TIME)
+            return false;
+
+        for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+            if (!project.isDisposed() && DumbService.isDumb(project))
+                return false;
+        }
+        return true;
+    }
+
+    private void tick() {
+        if (!canCheckNow()) {
+            LOG.debug("IDE is busy, deferring update check");
+            reschedule(jitter(DEFER_DELAY));
+            return;
+        }
+
+        m_updater.checkAsync(true).whenComplete(new BiConsumer<BundleMetadata, Throwable>() {
+            @Override
+            public void accept(BundleMetadata metadata, Throwable e) {
+                if (e != null)
+                    LOG.debug(e);
+                onChecked(e == null ? metadata : null);
+                reschedule(getNextInterval());
+            }
+        });
+    }
+
+    private void onChecked(@Nullable final BundleMetadata metadata) {
+        boolean changed;
+        synchronized (this) {
+            m_lastCheck = System.currentTimeMillis();
+            changed = metadata != null && !Comparing.equal(metadata.version, m_lastVersion);
+            if (changed) {
+                m_lastVersion = metadata.version;
+                m_backoff = 1;
+            }
+            else {
+                m_backoff = Math.min(MAX_BACKOFF, m_backoff * BACKOFF_FACTOR);
+            }
+        }
+
+        if (!changed)
+            return;
+
+        addToHistory(metadata);
+        m_updater.invokeWhenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                m_consumer.consume(metadata);
+            }
+        });
+    }
+
+    // Release history
+
+    @NotNull
+    private String getHistoryKey() {
+        return HISTORY_KEY + m_updater.getRemoteBundle().getMetadataUrl();
+    }
+
+    @NotNull
+    private List<String> loadHistory() {
+        String[] values = PropertiesComponent.getInstance().getValues(getHistoryKey());
+        return values == null ? new ArrayList<String>() : new ArrayList<>(Arrays.asList(values));
+    }
+
+    // Timestamp starts with "yyyy-MM-dd", day precision is enough here.
+    private static long parseDate(@Nullable String timestamp) {
+        if (timestamp == null || timestamp.length() < 10)
+            return 0;
+        try {
+            return DateUtils.dateFromString(timestamp.substring(0, 10)).getTime();
+        }
+        catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    private synchronized void addToHistory(@NotNull BundleMetadata metadata) {
+        if (metadata.version == null || parseDate(metadata.timestamp) == 0)
+            return;
+
+        List<String> history = loadHistory();
+        String prefix = metadata.version + HISTORY_SEP;
+        for (String item : history) {
+            if (item.startsWith(prefix))
+                return;
+        }
+
+        history.add(prefix + metadata.timestamp);
+        while (history.size() > HISTORY_SIZE)
+            history.remove(0);
+        PropertiesComponent.getInstance().setValues(
+            getHistoryKey(), history.toArray(new String[history.size()]));
+    }
+}
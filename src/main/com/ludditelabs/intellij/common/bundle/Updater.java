@@ -20,15 +20,27 @@ import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.util.Comparing;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.ui.AppUIUtil;
 import com.intellij.util.Consumer;
 import com.intellij.util.messages.Topic;
+import com.ludditelabs.intellij.common.SingleFlight;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
  * This class implements platform bundle download workflow.
@@ -39,8 +51,11 @@ import java.io.IOException;
  *     <li>Download metadata.</li>
  *     <li>Download and unpack platform package.</li>
  * </ul>
+ *
+ * Updater owns the local bundle: disposing the updater (application
+ * services are disposed on shutdown) stops watching bundle files.
  */
-public class Updater {
+public class Updater implements Disposable {
     public static Topic<Notifier> TOPIC = Topic.create(
         "bundle updater state", Notifier.class);
 
@@ -65,10 +80,28 @@ public class Updater {
     }
 
     protected static final Logger LOG = Logger.getInstance("ludditelabs.bundle.Updater");
+
+    // Max number of threads for asynchronous operations.
+    private static final int MAX_THREADS = 4;
+    private static final ExecutorService EXECUTOR = createExecutor();
+
     @NotNull private final String m_pluginVersion;
     @NotNull private final RemoteBundle m_remoteBundle;
     @NotNull private final LocalBundle m_localBundle;
-    private boolean m_busy = false;
+    private volatile boolean m_busy = false;
+    @Nullable private Collection<String> m_enabledComponents = null;
+    @NotNull private InstallStrategy m_installStrategy = InstallStrategy.AUTO;
+    @NotNull private final BundleGarbageCollector m_garbageCollector;
+    @NotNull private final MetadataCache m_metadataCache;
+
+    // Concurrent metadata requests, keyed by 'checkLastModified' flag.
+    @NotNull private final SingleFlight<Boolean, BundleMetadata> m_metadataFlight =
+        new SingleFlight<>();
+
+    // Installs in flight, keyed by bundle path. Installs of the same
+    // bundle share the archive, journal and '.new' dir.
+    @NotNull private final SingleFlight<String, Void> m_installFlight =
+        new SingleFlight<>();
 
     /**
      * Construct updater.
@@ -83,6 +116,28 @@ public class Updater {
         m_pluginVersion = pluginVersion;
         m_remoteBundle = remoteBundle;
         m_localBundle = localBundle;
+        Disposer.register(this, localBundle);
+        m_garbageCollector = new BundleGarbageCollector(this);
+        m_metadataCache = new MetadataCache(this);
+    }
+
+    @NotNull
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger m_count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NotNull Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                        "Bundle Updater " + m_count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     private void doSetBusy(boolean state) {
@@ -94,7 +149,7 @@ public class Updater {
         }
     }
 
-    private void notifyError(final IOException e) {
+    void notifyError(final IOException e) {
         AppUIUtil.invokeOnEdt(new Runnable() {
             @Override
             public void run() {
@@ -116,9 +171,27 @@ public class Updater {
         });
     }
 
+    /**
+     * Run in the EDT after local bundle state is loaded.
+     *
+     * Consumers compare remote metadata with the local one, so they must
+     * not see the state which is not loaded yet.
+     *
+     * @param runnable Runnable to call.
+     */
+    void invokeWhenLoaded(@NotNull final Runnable runnable) {
+        m_localBundle.loadAsync().whenComplete(
+            new BiConsumer<LocalBundle.Snapshot, Throwable>() {
+                @Override
+                public void accept(LocalBundle.Snapshot snapshot, Throwable e) {
+                    AppUIUtil.invokeOnEdt(runnable);
+                }
+            });
+    }
+
     private void notifyOnMetadata(@NotNull final BundleMetadata metadata,
                                   @Nullable final Consumer<BundleMetadata> consumer) {
-        AppUIUtil.invokeOnEdt(new Runnable() {
+        invokeWhenLoaded(new Runnable() {
             @Override
             public void run() {
                 m_remoteBundle.setMetadata(metadata);
@@ -131,12 +204,27 @@ public class Updater {
         });
     }
 
+    private void notifyConsumer(@NotNull final BundleMetadata metadata,
+                                @Nullable final Consumer<BundleMetadata> consumer) {
+        if (consumer == null)
+            return;
+
+        invokeWhenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                consumer.consume(metadata);
+            }
+        });
+    }
+
+    // Called in a background thread after unpacking, so local bundle is
+    // reloaded here and 'unpacked' subscribers see the new snapshot.
     private void doAfterUnpack(@Nullable final Runnable runnable) {
+        m_localBundle.reloadMetadata();
+        m_garbageCollector.collectAsync();
         AppUIUtil.invokeOnEdt(new Runnable() {
             @Override
             public void run() {
-                // TODO: reloadMetadata() may block main thread.
-                m_localBundle.reloadMetadata();
                 final Notifier pub = ApplicationManager.getApplication()
                     .getMessageBus().syncPublisher(TOPIC);
                 pub.unpacked();
@@ -204,6 +292,54 @@ public class Updater {
         return m_localBundle;
     }
 
+    @Override
+    public void dispose() {
+        // Local bundle is disposed as a child.
+    }
+
+    /** Persistent cache of the remote metadata. */
+    @NotNull
+    public MetadataCache getMetadataCache() {
+        return m_metadataCache;
+    }
+
+    /**
+     * Return last downloaded remote metadata without network and disk
+     * access, so it's safe to call in the EDT.
+     *
+     * @return Cached metadata or null if there is no cached metadata or
+     *         cache is not loaded yet (see {@link #prefetch()}).
+     */
+    @Nullable
+    public BundleMetadata getCachedMetadata() {
+        return m_metadataCache.peekMetadata();
+    }
+
+    /**
+     * Warm up updater state in background.
+     *
+     * Local bundle state and cached remote metadata are loaded in parallel
+     * in pooled threads, so later access doesn't hit the disk.
+     *
+     * @return Future which is completed after loading.
+     */
+    @NotNull
+    public CompletableFuture<Void> prefetch() {
+        CompletableFuture<?> cache = CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                m_metadataCache.get();
+            }
+        }, EXECUTOR);
+        return CompletableFuture.allOf(m_localBundle.loadAsync(), cache);
+    }
+
+    /** Garbage collector of the bundle install leftovers. */
+    @NotNull
+    public BundleGarbageCollector getGarbageCollector() {
+        return m_garbageCollector;
+    }
+
     /**
      * Return true if updater is busy with doing something
      * (like metadata downloading or package unpacking).
@@ -220,11 +356,76 @@ public class Updater {
         return m_pluginVersion;
     }
 
+    /**
+     * Return names of bundle components to install.
+     *
+     * @return Collection of component names or null if all components are
+     *         enabled.
+     */
+    @Nullable
+    public Collection<String> getEnabledComponents() {
+        return m_enabledComponents;
+    }
+
+    /**
+     * Set bundle components to install.
+     *
+     * Usually it's configured from the plugin settings. Files of disabled
+     * components are not extracted; enabled but not installed components
+     * may be added later with {@link #installComponents(Runnable)}.
+     *
+     * @param names Names of components or null to install all components.
+     */
+    public void setEnabledComponents(@Nullable Collection<String> names) {
+        m_enabledComponents = names == null ? null : new ArrayList<>(names);
+    }
+
+    /** Package install strategy. */
+    @NotNull
+    public InstallStrategy getInstallStrategy() {
+        return m_installStrategy;
+    }
+
+    /**
+     * Set package install strategy.
+     *
+     * By default ({@link InstallStrategy#AUTO}) strategy is chosen
+     * depending on the available disk space.
+     *
+     * @param strategy Install strategy.
+     */
+    public void setInstallStrategy(@NotNull InstallStrategy strategy) {
+        m_installStrategy = strategy;
+    }
+
+    /**
+     * Return enabled components which are not installed in the local bundle.
+     */
+    @NotNull
+    public List<String> getMissingComponents() {
+        BundleMetadata meta = m_localBundle.getMetadata();
+        if (meta == null)
+            return new ArrayList<>();
+        return meta.getMissingComponents(m_enabledComponents);
+    }
+
     // Download API
 
+    /**
+     * Operation which may be executed in a modal task or asynchronously.
+     *
+     * @param <T> Result type.
+     */
+    private interface Job<T> {
+        T run(@NotNull ProgressIndicator indicator) throws IOException;
+    }
+
     /**
      * Download remote metadata.
      *
+     * Concurrent requests are coalesced: only one download is performed
+     * and its result is passed to all consumers.
+     *
      * This method publishes 'metadataDownloaded' notification.
      *
      * @param consumer Metadata consumer. It will be called in the EDT thread.
@@ -236,25 +437,256 @@ public class Updater {
      */
     private BundleMetadata doDownloadMetadata(@Nullable final Consumer<BundleMetadata> consumer,
                                               final boolean checkLastModified) throws IOException {
-        MetadataDownloader dl = new MetadataDownloader(
-            Updater.this, null);
+        final ProgressIndicator indicator =
+            ProgressManager.getInstance().getProgressIndicator();
 
-        BundleMetadata meta = null;
+        BundleMetadata meta = m_metadataFlight.execute(checkLastModified,
+            new SingleFlight.Call<BundleMetadata>() {
+                @Override
+                public BundleMetadata call() throws IOException {
+                    MetadataDownloader dl = new MetadataDownloader(
+                        Updater.this, indicator);
 
-        // Check if remote metadata is updated by comparing
-        // last modified timestamp with saved one.
-        if (!checkLastModified || dl.needDownloadRemoteMetadata()) {
-            meta = dl.download();
-            notifyOnMetadata(meta, consumer);
-        }
+                    // Check if remote metadata is updated by comparing
+                    // last modified timestamp with saved one.
+                    if (checkLastModified && !dl.needDownloadRemoteMetadata())
+                        return null;
+
+                    BundleMetadata result = dl.download();
+                    notifyOnMetadata(result, null);
+                    return result;
+                }
+            }, indicator);
+
+        if (meta != null)
+            notifyConsumer(meta, consumer);
 
         return meta;
     }
 
+    // Job to download metadata, see doDownloadMetadata().
+    @NotNull
+    private Job<BundleMetadata> metadataJob(@Nullable final Consumer<BundleMetadata> consumer,
+                                            final boolean checkLastModified) {
+        return new Job<BundleMetadata>() {
+            @Override
+            public BundleMetadata run(@NotNull ProgressIndicator indicator) throws IOException {
+                return doDownloadMetadata(consumer, checkLastModified);
+            }
+        };
+    }
+
+    // Job to download metadata (if required) and then package.
+    @NotNull
+    private Job<Void> downloadJob(@Nullable final BundleMetadata metadata) {
+        return new Job<Void>() {
+            @Override
+            public Void run(@NotNull ProgressIndicator indicator) throws IOException {
+                // Re-download metadata if given metadata is null
+                // otherwise download only if remote meta was changed.
+                BundleMetadata meta = doDownloadMetadata(null, metadata != null);
+
+                // If 'meta' is null this means remote metadata is not
+                // changed so we can use 'metadata' object.
+                if (meta == null)
+                    meta = metadata;
+
+                doDownloadPackage(meta, indicator);
+                return null;
+            }
+        };
+    }
+
+    // Job to add missing enabled components to the installed bundle.
+    @NotNull
+    private Job<Void> installComponentsJob() {
+        return new Job<Void>() {
+            @Override
+            public Void run(@NotNull final ProgressIndicator indicator) throws IOException {
+                runInstall(new SingleFlight.Call<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        // Previous install may already add the components.
+                        BundleMetadata local_meta = m_localBundle.getMetadata();
+                        List<String> missing = getMissingComponents();
+                        if (local_meta == null || missing.isEmpty())
+                            return null;
+
+                        PackageDownloader dl = new PackageDownloader(
+                            Updater.this, local_meta, indicator);
+                        dl.downloadAndAddComponents(m_localBundle.getBundlePath(), missing);
+                        doAfterUnpack(null);
+                        return null;
+                    }
+                }, indicator);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Run job in a modal task.
+     *
+     * Errors are published with 'ioError' notification.
+     *
+     * @param title Task title.
+     * @param job Job to run.
+     * @param runnable Runnable to call after successful run. It will be
+     *                 called in the EDT thread.
+     */
+    private void runModal(@NotNull String title, @NotNull final Job<?> job,
+                          @Nullable final Runnable runnable) {
+        new Task.Modal(null, title, true) {
+            @Override
+            public void onCancel() {
+                notifyCancel();
+            }
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                try {
+                    job.run(indicator);
+                }
+                catch (IOException e) {
+                    notifyError(e);
+                    return;
+                }
+                if (runnable != null)
+                    AppUIUtil.invokeOnEdt(runnable);
+            }
+        }.queue();
+    }
+
     /**
-     * Silently download remote metadata in a background thread without
+     * Run job asynchronously in the updater executor.
+     *
+     * Job runs with its own progress indicator, canceling the returned
+     * future cancels the indicator, so network and unpacking operations
+     * are stopped. Note: canceling dependent futures doesn't affect the job.
+     *
+     * @param job Job to run.
+     * @return Future with job result.
+     */
+    @NotNull
+    private <T> CompletableFuture<T> submit(@NotNull final Job<T> job) {
+        final ProgressIndicator indicator = new EmptyProgressIndicator();
+        final CompletableFuture<T> future = new CompletableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                indicator.cancel();
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone())
+                    return;
+
+                try {
+                    ProgressManager.getInstance().runProcess(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                future.complete(job.run(indicator));
+                            }
+                            catch (IOException e) {
+                                future.completeExceptionally(e);
+                            }
+                        }
+                    }, indicator);
+                }
+                catch (ProcessCanceledException e) {
+                    future.cancel(false);
+                }
+                catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Executor for asynchronous operations.
+     *
+     * It's shared by all updaters and has a limited number of daemon
+     * threads.
+     */
+    @NotNull
+    public static ExecutorService getExecutor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * Download remote metadata asynchronously.
+     *
+     * This method publishes 'metadataDownloaded' notification.
+     *
+     * @param checkLastModified Check remote metadata modification time and
+     *                          download only if its newer than local bundle's
+     *                          timestamp.
+     * @return Future with metadata or null if remote metadata is not
+     *         modified.
+     */
+    @NotNull
+    public CompletableFuture<BundleMetadata> checkAsync(boolean checkLastModified) {
+        return submit(metadataJob(null, checkLastModified));
+    }
+
+    /**
+     * Download and unpack remote package asynchronously.
+     *
+     * If metadata is not provided or remote side has new one
+     * then it will be loaded.
+     *
+     * This method publishes 'metadataDownloaded' and 'unpacked' notifications.
+     *
+     * @param metadata Remote metadata.
+     * @return Future which is completed after unpacking.
+     */
+    @NotNull
+    public CompletableFuture<Void> downloadAsync(@Nullable BundleMetadata metadata) {
+        return submit(downloadJob(metadata));
+    }
+
+    /**
+     * Download latest remote bundle (both metadata and package) and
+     * install it asynchronously.
+     *
+     * This method publishes 'metadataDownloaded' and 'unpacked' notifications.
+     *
+     * @return Future which is completed after unpacking.
+     * @see #download(Runnable)
+     * @see #installComponentsAsync()
+     */
+    @NotNull
+    public CompletableFuture<Void> installAsync() {
+        return submit(downloadJob(null));
+    }
+
+    /**
+     * Add missing enabled components to the installed bundle asynchronously.
+     *
+     * This method publishes 'unpacked' notification if there are missing
+     * components.
+     *
+     * @return Future which is completed after unpacking.
+     * @see #installComponents(Runnable)
+     */
+    @NotNull
+    public CompletableFuture<Void> installComponentsAsync() {
+        return submit(installComponentsJob());
+    }
+
+    /**
+     * Silently get remote metadata in a background thread without
      * any error notifications.
      *
+     * Cached metadata is passed to the consumer without network access
+     * and revalidated if it's older than {@link MetadataCache#getTtl() TTL}.
+     *
      * This method publishes 'metadataDownloaded' notification.
      *
      * @param consumer Metadata consumer. It will be called in the EDT thread.
@@ -264,15 +696,24 @@ public class Updater {
      */
     private void downloadMetadataSilent(@Nullable final Consumer<BundleMetadata> consumer,
                                         final boolean checkLastModified) {
-        ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        submit(new Job<Void>() {
             @Override
-            public void run() {
+            public Void run(@NotNull ProgressIndicator indicator) {
                 try {
-                    doDownloadMetadata(consumer, checkLastModified);
+                    BundleMetadata cached = m_metadataCache.getMetadata();
+                    if (cached == null) {
+                        doDownloadMetadata(consumer, checkLastModified);
+                    }
+                    else {
+                        notifyOnMetadata(cached, consumer);
+                        if (!m_metadataCache.isFresh())
+                            revalidateMetadata(cached, consumer, indicator);
+                    }
                 }
                 catch (IOException e) {
                     LOG.debug(e);
                 }
+                return null;
             }
         });
     }
@@ -280,6 +721,8 @@ public class Updater {
     /**
      * Download remote metadata in a foreground.
      *
+     * Cached metadata is used only if download fails.
+     *
      * This method publishes 'metadataDownloaded' notification.
      *
      * @param consumer Metadata consumer. It will be called in the EDT thread.
@@ -290,27 +733,34 @@ public class Updater {
     private void downloadMetadataModal(@Nullable final Consumer<BundleMetadata> consumer,
                                        final boolean checkLastModified) {
         String title = m_remoteBundle.getDisplayName() + " Platform Bundle Info";
-        new Task.Modal(null, title, true) {
+        runModal(title, new Job<BundleMetadata>() {
             @Override
-            public void onCancel() {
-                notifyCancel();
-            }
-
-            @Override
-            public void run(@NotNull ProgressIndicator indicator) {
+            public BundleMetadata run(@NotNull ProgressIndicator indicator) throws IOException {
                 try {
-                    doDownloadMetadata(consumer, checkLastModified);
+                    return doDownloadMetadata(consumer, checkLastModified);
                 }
                 catch (IOException e) {
-                    notifyError(e);
+                    BundleMetadata cached = m_metadataCache.getMetadata();
+                    if (cached == null)
+                        throw e;
+
+                    LOG.info("Can't download metadata, using cached one", e);
+                    notifyOnMetadata(cached, consumer);
+                    return cached;
                 }
             }
-        }.queue();
+        }, null);
     }
 
     /**
      * Download metadata.
      *
+     * Silent download passes cached metadata to the consumer without
+     * network access and revalidates it in background only if it's older
+     * than {@link MetadataCache#getTtl() TTL}. Foreground download always
+     * waits for the remote metadata, cached one is used only if the
+     * request fails.
+     *
      * This method publishes 'metadataDownloaded' notification.
      *
      * @param consumer Metadata consumer. It will be called in the EDT thread.
@@ -328,6 +778,131 @@ public class Updater {
             downloadMetadataModal(consumer, checkLastModified);
     }
 
+    /**
+     * Revalidate cached metadata in the caller thread.
+     *
+     * Consumer is called again only if remote metadata differs from
+     * the cached one.
+     *
+     * @param cached Cached metadata.
+     * @param consumer Metadata consumer. It will be called in the EDT thread.
+     * @param indicator Progress indicator.
+     * @throws IOException on errors.
+     */
+    private void revalidateMetadata(@NotNull final BundleMetadata cached,
+                                    @Nullable final Consumer<BundleMetadata> consumer,
+                                    @NotNull final ProgressIndicator indicator)
+        throws IOException {
+        BundleMetadata meta = m_metadataFlight.execute(false,
+            new SingleFlight.Call<BundleMetadata>() {
+                @Override
+                public BundleMetadata call() throws IOException {
+                    MetadataDownloader dl = new MetadataDownloader(
+                        Updater.this, indicator);
+                    BundleMetadata result = dl.download();
+                    if (isChanged(result, cached))
+                        notifyOnMetadata(result, null);
+                    return result;
+                }
+            }, indicator);
+
+        if (isChanged(meta, cached))
+            notifyConsumer(meta, consumer);
+    }
+
+    private static boolean isChanged(@NotNull BundleMetadata meta,
+                                     @NotNull BundleMetadata cached) {
+        return !Comparing.equal(meta.version, cached.version)
+            || !Comparing.equal(meta.dist, cached.dist);
+    }
+
+    /**
+     * Run install of the local bundle exclusively.
+     *
+     * If there is another install of the same bundle in flight then
+     * this method waits for it and then runs the given call, so installs
+     * never touch each other's files.
+     *
+     * It's also used by other operations on the install files, like
+     * garbage collection and recovery.
+     *
+     * @param call Install call.
+     * @param indicator Progress indicator.
+     * @throws IOException on errors.
+     */
+    void runInstall(@NotNull final SingleFlight.Call<Void> call,
+                            @NotNull ProgressIndicator indicator) throws IOException {
+        String key = m_localBundle.getBundlePath();
+        while (true) {
+            final boolean[] executed = {false};
+            try {
+                m_installFlight.execute(key, new SingleFlight.Call<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        executed[0] = true;
+                        return call.call();
+                    }
+                }, indicator);
+            }
+            catch (IOException e) {
+                // Error of the other install is not ours.
+                if (executed[0])
+                    throw e;
+            }
+            if (executed[0])
+                return;
+        }
+    }
+
+    /**
+     * Download and unpack remote package.
+     *
+     * Concurrent downloads of the same version are coalesced: package is
+     * downloaded and unpacked only once. Downloads of different versions
+     * are serialized.
+     *
+     * This method publishes 'unpacked' notification.
+     *
+     * @param metadata Remote metadata.
+     * @param indicator Progress indicator.
+     * @throws IOException on errors.
+     */
+    private void doDownloadPackage(@NotNull final BundleMetadata metadata,
+                                   @NotNull final ProgressIndicator indicator) throws IOException {
+        final boolean coalesce = m_installFlight.isInFlight(m_localBundle.getBundlePath());
+        runInstall(new SingleFlight.Call<Void>() {
+            @Override
+            public Void call() throws IOException {
+                // Skip if the install we waited for is the same version.
+                BundleMetadata local_meta = m_localBundle.getMetadata();
+                if (coalesce && local_meta != null
+                    && Comparing.equal(local_meta.version, metadata.version))
+                    return null;
+
+                PackageDownloader dl = new PackageDownloader(
+                    Updater.this, metadata, indicator);
+                dl.downloadAndUnpack(m_localBundle.getBundlePath());
+                doAfterUnpack(null);
+                return null;
+            }
+        }, indicator);
+    }
+
+    /**
+     * Download metadata (if required) and then package in the current
+     * thread.
+     *
+     * This method publishes 'metadataDownloaded' and 'unpacked' notifications.
+     *
+     * @param metadata Remote metadata or null to download latest one.
+     * @param indicator Progress indicator.
+     * @throws IOException on errors.
+     */
+    void doDownload(@Nullable BundleMetadata metadata,
+                    @NotNull ProgressIndicator indicator) throws IOException {
+        downloadJob(metadata).run(indicator);
+    }
+
     /**
      * Download remote package in a foreground with progress indicator.
      *
@@ -339,38 +914,141 @@ public class Updater {
      * @param metadata Remote metadata.
      * @param runnable Runnable to call after unpacking the package. it will be
      *                 called in the EDT thread.
+     * @see #downloadAsync(BundleMetadata)
      */
     public void download(@Nullable final BundleMetadata metadata,
                          @Nullable final Runnable runnable) {
         String title = m_remoteBundle.getDisplayName() + " Platform Bundle";
-        new Task.Modal(null, title, true) {
+        runModal(title, downloadJob(metadata), runnable);
+    }
+
+    /**
+     * Add missing enabled components to the installed bundle without
+     * reinstalling it.
+     *
+     * Package of the installed bundle version is downloaded and only files
+     * of the missing components are extracted.
+     *
+     * Missing components are checked after the local bundle state is
+     * loaded, so it works right after the IDE start too.
+     *
+     * This method publishes 'unpacked' notification.
+     *
+     * @param runnable Runnable to call after unpacking the components.
+     *                 It will be called in the EDT thread.
+     * @see #installComponentsAsync()
+     */
+    public void installComponents(@Nullable final Runnable runnable) {
+        invokeWhenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                if (m_localBundle.getMetadata() == null || getMissingComponents().isEmpty()) {
+                    if (runnable != null)
+                        runnable.run();
+                    return;
+                }
+
+                String title = m_remoteBundle.getDisplayName() + " Platform Bundle";
+                runModal(title, installComponentsJob(), runnable);
+            }
+        });
+    }
+
+    /**
+     * Recover after interrupted install (for example if IDE was killed).
+     *
+     * It's supposed to be called on startup. If install journal shows that
+     * downloaded package is still available then install is continued in
+     * background reusing already extracted files; otherwise leftovers of
+     * the install are deleted.
+     *
+     * This method publishes 'unpacked' notification if install is
+     * continued.
+     *
+     * @param runnable Runnable to call after unpacking. it will be called
+     *                 in the EDT thread.
+     */
+    public void recoverInstall(@Nullable final Runnable runnable) {
+        ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+            @Override
+            public void run() {
+                final String path = m_localBundle.getBundlePath();
+                final InstallJournal[] resumable = {null};
+
+                // Install may be already started, so leftovers are checked
+                // and discarded exclusively with installs.
+                try {
+                    runInstall(new SingleFlight.Call<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            InstallJournal journal = InstallJournal.load(path);
+                            if (journal == null || (!journal.hasArchive()
+                                && journal.phase.compareTo(InstallJournal.Phase.EXTRACTED) < 0))
+                                PackageDownloader.discard(path);
+                            else
+                                resumable[0] = journal;
+                            return null;
+                        }
+                    }, new EmptyProgressIndicator());
+                }
+                catch (IOException e) {
+                    LOG.debug(e);
+                }
+
+                final InstallJournal journal = resumable[0];
+                if (journal == null)
+                    return;
+
+                AppUIUtil.invokeOnEdt(new Runnable() {
+                    @Override
+                    public void run() {
+                        resumeInstall(path, journal, runnable);
+                    }
+                });
+            }
+        });
+    }
+
+    // Continue interrupted install in a background task.
+    private void resumeInstall(@NotNull final String path,
+                               @NotNull final InstallJournal journal,
+                               @Nullable final Runnable runnable) {
+        String title = m_remoteBundle.getDisplayName() + " Platform Bundle";
+        new Task.Backgroundable(null, title, true) {
             @Override
             public void onCancel() {
                 notifyCancel();
             }
 
             @Override
-            public void run(@NotNull ProgressIndicator indicator) {
+            public void run(@NotNull final ProgressIndicator indicator) {
+                final boolean[] resumed = {false};
                 try {
-                    // Re-download metadata if given metadata is null
-                    // otherwise download only if remote meta was changed.
-                    BundleMetadata meta = doDownloadMetadata(
-                        null, metadata != null);
-
-                    // If 'meta' is null this means remote metadata is not
-                    // changed so we can use 'metadata' object.
-                    if (meta == null)
-                        meta = metadata;
-
-                    PackageDownloader dl = new PackageDownloader(
-                        Updater.this, meta, indicator);
-                    dl.downloadAndUnpack(m_localBundle.getBundlePath());
+                    runInstall(new SingleFlight.Call<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            // Other install may already finish or replace it.
+                            InstallJournal current = InstallJournal.load(path);
+                            if (current == null
+                                || !current.isSameInstall(journal.metadata, journal.components))
+                                return null;
+
+                            PackageDownloader dl = new PackageDownloader(
+                                Updater.this, journal.metadata, indicator);
+                            dl.resume(path, current);
+                            resumed[0] = true;
+                            return null;
+                        }
+                    }, indicator);
                 }
                 catch (IOException e) {
                     notifyError(e);
                     return;
                 }
-                doAfterUnpack(runnable);
+                if (resumed[0])
+                    doAfterUnpack(runnable);
+                else if (runnable != null)
+                    AppUIUtil.invokeOnEdt(runnable);
             }
         }.queue();
     }
@@ -380,6 +1058,7 @@ public class Updater {
      *
      * @param runnable Runnable to call after unpacking. it will be called
      *                 in the EDT thread.
+     * @see #installAsync()
      */
     public void download(@NotNull final Runnable runnable) {
         download(null, runnable);
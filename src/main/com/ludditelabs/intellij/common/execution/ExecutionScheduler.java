@@ -0,0 +1,327 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.execution;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.concurrency.PooledThreadExecutor;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+
+/**
+ * Application wide scheduler of the external commands.
+ *
+ * All projects share the same limit of concurrently running commands,
+ * so several open projects can't saturate the machine:
+ * <ul>
+ *     <li>{@link Priority#INTERACTIVE} commands are always started before
+ *         {@link Priority#BACKGROUND} ones; also one slot is reserved for
+ *         them, so they never wait for a whole-project batch. If only one
+ *         command may run then nothing can be reserved: background command
+ *         may take the only slot and interactive ones wait for it.</li>
+ *     <li>Commands of the same priority are taken from projects in
+ *         round-robin order, each project's commands are started in
+ *         submission order.</li>
+ *     <li>Queue depth and wait times are collected for diagnostics.</li>
+ * </ul>
+ */
+public class ExecutionScheduler {
+    protected static final Logger LOG = Logger.getInstance(ExecutionScheduler.class);
+
+    /** Command priority. */
+    public enum Priority {
+        /** Command which user waits for, for example current file check. */
+        INTERACTIVE,
+
+        /** Bulk or periodic command, for example whole-project run. */
+        BACKGROUND
+    }
+
+    // Slots which background commands can't use.
+    private static final int INTERACTIVE_RESERVE = 1;
+
+    private static class Holder {
+        static final ExecutionScheduler INSTANCE = new ExecutionScheduler(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    // Queued command.
+    private static class Task {
+        @NotNull final ExternalCommand command;
+        @NotNull final Priority priority;
+        @NotNull final CompletableFuture<ExternalCommandResult> future;
+        final long queuedAt = System.currentTimeMillis();
+
+        Task(@NotNull ExternalCommand command, @NotNull Priority priority,
+             @NotNull CompletableFuture<ExternalCommandResult> future) {
+            this.command = command;
+            this.priority = priority;
+            this.future = future;
+        }
+    }
+
+    // Wait time statistics.
+    private static class Stats {
+        long count = 0;
+        long totalWait = 0;
+        long maxWait = 0;
+    }
+
+    // Per project queues in round-robin order for each priority.
+    @NotNull private final Map<Priority, LinkedHashMap<Project, ArrayDeque<Task>>> m_queues =
+        new EnumMap<>(Priority.class);
+    @NotNull private final Map<Priority, Stats> m_stats = new EnumMap<>(Priority.class);
+    private int m_maxRunning;
+    private int m_running = 0;
+    private int m_queued = 0;
+
+    /**
+     * Construct scheduler.
+     *
+     * Usually the shared {@link #getInstance() instance} is used.
+     *
+     * @param maxRunning Max number of concurrently running commands.
+     *                   Interactive slot is reserved only if it's greater
+     *                   than 1.
+     */
+    public ExecutionScheduler(int maxRunning) {
+        m_maxRunning = Math.max(1, maxRunning);
+        for (Priority priority : Priority.values()) {
+            m_queues.put(priority, new LinkedHashMap<Project, ArrayDeque<Task>>());
+            m_stats.put(priority, new Stats());
+        }
+    }
+
+    /** Application wide scheduler. */
+    @NotNull
+    public static ExecutionScheduler getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Set max number of concurrently running commands.
+     *
+     * @param count Max number of commands. Interactive slot is reserved
+     *              only if it's greater than 1.
+     */
+    public void setMaxRunning(int count) {
+        synchronized (this) {
+            m_maxRunning = Math.max(1, count);
+        }
+        dispatch();
+    }
+
+    /** Max number of concurrently running commands. */
+    public synchronized int getMaxRunning() {
+        return m_maxRunning;
+    }
+
+    /** Number of running commands. */
+    public synchronized int getRunningCount() {
+        return m_running;
+    }
+
+    /** Number of queued commands. */
+    public synchronized int getQueueDepth() {
+        return m_queued;
+    }
+
+    /** Number of queued commands with given priority. */
+    public synchronized int getQueueDepth(@NotNull Priority priority) {
+        int count = 0;
+        for (ArrayDeque<Task> queue : m_queues.get(priority).values())
+            count += queue.size();
+        return count;
+    }
+
+    /** Average time in milliseconds commands wait in the queue. */
+    public synchronized long getAverageWaitTime(@NotNull Priority priority) {
+        Stats stats = m_stats.get(priority);
+        return stats.count == 0 ? 0 : stats.totalWait / stats.count;
+    }
+
+    /** Max time in milliseconds commands waited in the queue. */
+    public synchronized long getMaxWaitTime(@NotNull Priority priority) {
+        return m_stats.get(priority).maxWait;
+    }
+
+    /** Reset wait time statistics. */
+    public synchronized void resetStats() {
+        for (Priority priority : Priority.values())
+            m_stats.put(priority, new Stats());
+    }
+
+    /**
+     * Schedule command execution.
+     *
+     * Canceling the returned future removes the command from the queue or
+     * cancels it if it's already running (see {@link ExternalCommand#cancel()}).
+     * Commands of disposed projects are canceled instead of running.
+     *
+     * @param command Command to execute.
+     * @param priority Command priority.
+     * @return Future with command result.
+     */
+    @NotNull
+    public CompletableFuture<ExternalCommandResult> submit(@NotNull final ExternalCommand command,
+                                                           @NotNull Priority priority) {
+        final Task[] queued = {null};
+        CompletableFuture<ExternalCommandResult> future =
+            new CompletableFuture<ExternalCommandResult>() {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    boolean result = super.cancel(mayInterruptIfRunning);
+                    synchronized (ExecutionScheduler.this) {
+                        if (queued[0] != null)
+                            dequeue(queued[0]);
+                    }
+                    command.cancel();
+                    return result;
+                }
+            };
+
+        synchronized (this) {
+            // Canceled before it's queued.
+            if (future.isDone())
+                return future;
+
+            LinkedHashMap<Project, ArrayDeque<Task>> queues = m_queues.get(priority);
+            ArrayDeque<Task> queue = queues.get(command.project());
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(command.project(), queue);
+            }
+            queued[0] = new Task(command, priority, future);
+            queue.addLast(queued[0]);
+            ++m_queued;
+        }
+        dispatch();
+        return future;
+    }
+
+    // Remove canceled task from the queue, does nothing if it's
+    // already started. Must be called under the lock.
+    private void dequeue(@NotNull Task task) {
+        LinkedHashMap<Project, ArrayDeque<Task>> queues = m_queues.get(task.priority);
+        ArrayDeque<Task> queue = queues.get(task.command.project());
+        if (queue != null && queue.remove(task)) {
+            --m_queued;
+            if (queue.isEmpty())
+                queues.remove(task.command.project());
+        }
+    }
+
+    // Start queued commands while there are free slots.
+    private void dispatch() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                task = poll(Priority.INTERACTIVE, m_maxRunning);
+                if (task == null)
+                    task = poll(Priority.BACKGROUND, m_maxRunning - INTERACTIVE_RESERVE);
+                if (task == null)
+                    return;
+                ++m_running;
+            }
+            start(task);
+        }
+    }
+
+    // Take next task of the given priority in round-robin order.
+    // Must be called under the lock.
+    private Task poll(@NotNull Priority priority, int limit) {
+        LinkedHashMap<Project, ArrayDeque<Task>> queues = m_queues.get(priority);
+        while (!queues.isEmpty()) {
+            Iterator<Map.Entry<Project, ArrayDeque<Task>>> it = queues.entrySet().iterator();
+            Map.Entry<Project, ArrayDeque<Task>> entry = it.next();
+            Task task = entry.getValue().peekFirst();
+
+            // Drop canceled tasks without taking a slot. Background limit
+            // is 0 if max running is 1, it still gets the only slot.
+            if (task != null && !task.future.isDone() && !entry.getKey().isDisposed()) {
+                if (m_running >= Math.max(1, limit))
+                    return null;
+            }
+
+            entry.getValue().pollFirst();
+            --m_queued;
+
+            // Move project to the end of the round.
+            it.remove();
+            if (!entry.getValue().isEmpty())
+                queues.put(entry.getKey(), entry.getValue());
+
+            if (task == null || task.future.isDone())
+                continue;
+            if (entry.getKey().isDisposed()) {
+                task.future.cancel(false);
+                continue;
+            }
+
+            Stats stats = m_stats.get(priority);
+            long wait = System.currentTimeMillis() - task.queuedAt;
+            ++stats.count;
+            stats.totalWait += wait;
+            stats.maxWait = Math.max(stats.maxWait, wait);
+            return task;
+        }
+        return null;
+    }
+
+    // Execute dequeued command, overridden in tests.
+    @NotNull
+    CompletableFuture<ExternalCommandResult> execute(@NotNull ExternalCommand command) {
+        return command.executeAsync(PooledThreadExecutor.INSTANCE);
+    }
+
+    private void start(@NotNull final Task task) {
+        CompletableFuture<ExternalCommandResult> result;
+        try {
+            result = execute(task.command);
+        }
+        catch (Throwable e) {
+            finished();
+            task.future.completeExceptionally(e);
+            return;
+        }
+
+        result.whenComplete(new BiConsumer<ExternalCommandResult, Throwable>() {
+            @Override
+            public void accept(ExternalCommandResult value, Throwable e) {
+                finished();
+                if (e instanceof CancellationException)
+                    task.future.cancel(false);
+                else if (e != null)
+                    task.future.completeExceptionally(e);
+                else
+                    task.future.complete(value);
+            }
+        });
+    }
+
+    private void finished() {
+        synchronized (this) {
+            --m_running;
+        }
+        dispatch();
+    }
+}
@@ -23,14 +23,16 @@ import com.intellij.execution.configurations.GeneralCommandLine;
 import com.intellij.execution.process.*;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.CharsetToolkit;
-import com.intellij.util.EnvironmentUtil;
+import com.intellij.util.concurrency.JobScheduler;
 import com.intellij.util.containers.ContainerUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -41,10 +43,34 @@ import java.util.Collection;
 public class ExternalCommand {
     protected static final Logger LOG = Logger.getInstance(ExternalCommand.class);
 
+    private static final int MAX_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    // Max number of running asynchronous processes.
+    private static final int MAX_PROCESSES = 4 * MAX_THREADS;
+    // Each process takes I/O threads to wait for it and to read
+    // its stdout and stderr.
+    private static final int IO_THREADS_PER_PROCESS = 3;
+    // Time to wait after soft termination before killing the process.
+    private static final long KILL_DELAY = TimeUnit.SECONDS.toMillis(2);
+    private static final ExecutorService EXECUTOR =
+        createExecutor("External Command ", MAX_THREADS);
+    private static final ExecutorService IO_EXECUTOR =
+        createExecutor("External Command I/O ", MAX_PROCESSES * IO_THREADS_PER_PROCESS);
+
+    // Asynchronous process slots. Number of running processes is limited,
+    // so I/O executor always has enough threads to serve them.
+    private static final Object SLOTS_LOCK = new Object();
+    private static int s_runningProcesses = 0;
+    private static final ArrayDeque<Runnable> s_pendingStarts = new ArrayDeque<>();
+
     private final GeneralCommandLine m_cmd;
     private final Project m_project;
     private String m_title = "shell command";
-    private KillableColoredProcessHandler m_processHandler = null;
+    private OutputRetention m_retention = OutputRetention.FULL;
+    private int m_tailSize = 0;
+    private volatile KillableColoredProcessHandler m_processHandler = null;
+    private volatile boolean m_canceled = false;
+    private volatile boolean m_timedOut = false;
+    private long m_timeout = 0;
     private final Collection<ExternalCommandListener> m_listeners = ContainerUtil.newArrayList();
 
     /**
@@ -58,26 +84,27 @@ public class ExternalCommand {
         m_cmd = createCmd(exePath);
     }
 
+    /**
+     * Construct external command with prepared command line.
+     *
+     * @param project the project for which the command is created.
+     * @param cmd command line to run.
+     * @see ExternalCommandTemplate
+     */
+    public ExternalCommand(@NotNull Project project, @NotNull GeneralCommandLine cmd) {
+        m_project = project;
+        m_cmd = cmd;
+    }
+
     // Helper method to construct basic command line.
     // It configures PATH environment and streams charset (UTF-8).
-    private GeneralCommandLine createCmd(String exePath) {
+    static GeneralCommandLine createCmd(String exePath) {
         GeneralCommandLine cmd = new GeneralCommandLine();
         cmd.setExePath(exePath);
-
-        // Update PATH env.
-        Collection<String> paths = ContainerUtil.newArrayList();
-        ContainerUtil.addIfNotNull(
-            paths, StringUtil.nullize(cmd.getEnvironment().get("PATH"), true));
-        ContainerUtil.addIfNotNull(
-            paths, StringUtil.nullize(EnvironmentUtil.getValue("PATH"), true));
-        cmd.getEnvironment().put(
-            "PATH", StringUtil.join(paths, File.pathSeparator));
-
-        // Configure other stuff.
         cmd.withCharset(CharsetToolkit.UTF8_CHARSET);
 
-        // Old API (141):
-        cmd.withEnvironment(EnvironmentUtil.getEnvironmentMap());
+        // Old API (141), environment with updated PATH is prepared once:
+        cmd.withEnvironment(ExternalCommandTemplate.defaultEnvironment());
 
         // New API:
         // cmd.withParentEnvironmentType(
@@ -128,6 +155,40 @@ public class ExternalCommand {
         m_title = title;
     }
 
+    /**
+     * Set how much of the output to keep for the result.
+     *
+     * By default whole output is kept. Use {@link OutputRetention#NONE} or
+     * {@link OutputRetention#TAIL} for commands with large output and
+     * process it line by line in {@link ExternalCommandListener#onLine}.
+     *
+     * @param retention Output retention.
+     * @param tailSize Number of last lines of each stream to keep for
+     *                 {@link OutputRetention#TAIL}.
+     */
+    public void setOutputRetention(@NotNull OutputRetention retention, int tailSize) {
+        m_retention = retention;
+        m_tailSize = tailSize;
+    }
+
+    /**
+     * Set command timeout.
+     *
+     * If command runs longer then its process tree is terminated softly
+     * and then killed if it's still alive. Result of such command has
+     * {@link ExternalCommandResult#isTimeout()} flag.
+     *
+     * @param timeout Timeout in milliseconds, 0 means no timeout.
+     */
+    public void setTimeout(long timeout) {
+        m_timeout = timeout;
+    }
+
+    /** Command timeout in milliseconds, 0 means no timeout. */
+    public long getTimeout() {
+        return m_timeout;
+    }
+
     /**
      * Add external command line listener.
      *
@@ -157,32 +218,294 @@ public class ExternalCommand {
      *
      * The command will be executed in cancelable process in the caller thread.
      *
+     * @return Command result, it's also passed to the listeners.
      * @throws ExecutionException
      */
-    public void execute() throws ExecutionException {
+    public ExternalCommandResult execute() throws ExecutionException {
+        OutputCollector collector = createCollector();
+        start(collector, false, null);
+
+        ExecutionModes.SameThreadMode thread_mode =
+            new ExecutionModes.SameThreadMode(m_title);
+        ExecutionHelper.executeExternalProcess(m_project, m_processHandler,
+            thread_mode, m_cmd);
+
+        return finish(collector);
+    }
+
+    /**
+     * Execute external command asynchronously.
+     *
+     * The process is started in the shared executor with a limited number
+     * of threads, and the future is completed when the process terminates,
+     * so no thread is held while the command runs. Its output is read by
+     * the shared bounded I/O executor. Number of running processes is
+     * limited, if many commands are submitted then some of them wait in
+     * the queue. Canceling the returned future destroys the process tree
+     * (see {@link #cancel()}).
+     *
+     * @return Future with command result, the result is also passed to
+     *         the listeners.
+     */
+    @NotNull
+    public CompletableFuture<ExternalCommandResult> executeAsync() {
+        return executeAsync(EXECUTOR);
+    }
+
+    // Execute command asynchronously, the executor is used only to start
+    // the process.
+    @NotNull
+    CompletableFuture<ExternalCommandResult> executeAsync(@NotNull final Executor executor) {
+        final CompletableFuture<ExternalCommandResult> future =
+            new CompletableFuture<ExternalCommandResult>() {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    boolean result = super.cancel(mayInterruptIfRunning);
+                    ExternalCommand.this.cancel();
+                    return result;
+                }
+            };
+
+        acquireSlot(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            startAsync(future);
+                        }
+                    });
+                }
+                catch (Throwable e) {
+                    releaseSlot();
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    // Start process in the caller thread and complete the future when
+    // the process is terminated. Must be called with acquired slot.
+    private void startAsync(@NotNull final CompletableFuture<ExternalCommandResult> future) {
+        if (future.isDone()) {
+            releaseSlot();
+            return;
+        }
+
+        final OutputCollector collector = createCollector();
+        try {
+            // Added after the collector, so the output is complete
+            // when the result is created.
+            start(collector, true, new ProcessAdapter() {
+                @Override
+                public void processTerminated(ProcessEvent event) {
+                    releaseSlot();
+                    try {
+                        future.complete(finish(collector));
+                    }
+                    catch (Throwable e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        }
+        catch (Throwable e) {
+            releaseSlot();
+            future.completeExceptionally(e);
+        }
+    }
+
+    // Run the task if there is a free process slot, otherwise queue it
+    // until some process is terminated.
+    private static void acquireSlot(@NotNull Runnable task) {
+        synchronized (SLOTS_LOCK) {
+            if (s_runningProcesses >= MAX_PROCESSES) {
+                s_pendingStarts.add(task);
+                return;
+            }
+            s_runningProcesses++;
+        }
+        task.run();
+    }
+
+    // Pass the slot to the next queued task or free it.
+    private static void releaseSlot() {
+        Runnable next;
+        synchronized (SLOTS_LOCK) {
+            next = s_pendingStarts.poll();
+            if (next == null) {
+                s_runningProcesses--;
+                return;
+            }
+        }
+        next.run();
+    }
+
+    /**
+     * Cancel command.
+     *
+     * Process and all its children are destroyed, result of the command
+     * will be marked as canceled. If command is not started yet then it
+     * will be canceled right after start.
+     */
+    public void cancel() {
+        m_canceled = true;
+        KillableColoredProcessHandler handler = m_processHandler;
+        if (handler != null)
+            terminate(handler);
+    }
+
+    // Terminate process tree softly (SIGINT on Unix) and kill it if it's
+    // still running after a delay.
+    private static void terminate(@NotNull final KillableColoredProcessHandler handler) {
+        if (handler.isProcessTerminated())
+            return;
+
+        handler.destroyProcess();
+        JobScheduler.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!handler.isProcessTerminated() && handler.canKillProcess()) {
+                    LOG.debug("Killing process: ", handler.getCommandLine());
+                    handler.killProcess();
+                }
+            }
+        }, KILL_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    // Terminate process after timeout.
+    @Nullable
+    private ScheduledFuture<?> scheduleTimeout(@NotNull final KillableColoredProcessHandler handler) {
+        if (m_timeout <= 0)
+            return null;
+
+        return JobScheduler.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!handler.isProcessTerminated()) {
+                    LOG.debug("Command is timed out: ", handler.getCommandLine());
+                    m_timedOut = true;
+                    terminate(handler);
+                }
+            }
+        }, m_timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /** Return true if command is canceled. */
+    public boolean isCanceled() {
+        return m_canceled;
+    }
+
+    /**
+     * Executor which starts asynchronous commands.
+     *
+     * It's shared by all commands and has a limited number of daemon
+     * threads. Threads are used only to start processes, they are not
+     * held while processes run.
+     */
+    @NotNull
+    public static ExecutorService getExecutor() {
+        return EXECUTOR;
+    }
+
+    @NotNull
+    private static ExecutorService createExecutor(@NotNull final String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threads, threads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger m_count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NotNull Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                        name + m_count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @NotNull
+    private OutputCollector createCollector() {
+        return new OutputCollector(
+            m_retention, m_tailSize, ContainerUtil.newArrayList(m_listeners));
+    }
+
+    // Create process handler, asynchronous one uses shared I/O executor
+    // instead of unbounded pooled threads.
+    @NotNull
+    private KillableColoredProcessHandler createHandler(boolean async) throws ExecutionException {
+        if (!async)
+            return new KillableColoredProcessHandler(m_cmd);
+
+        return new KillableColoredProcessHandler(m_cmd) {
+            @NotNull
+            @Override
+            protected Future<?> executeOnPooledThread(@NotNull Runnable task) {
+                return IO_EXECUTOR.submit(task);
+            }
+        };
+    }
+
+    // Create process handler and start the process.
+    // Termination listener is notified after the collector.
+    private void start(@NotNull OutputCollector collector, boolean async,
+                       @Nullable ProcessListener terminationListener)
+        throws ExecutionException {
         LOG.assertTrue(m_processHandler == null,
             "Process has already run with this instance.");
 
-        m_processHandler = new KillableColoredProcessHandler(m_cmd);
-        m_processHandler.setShouldDestroyProcessRecursively(true);
-        ProcessTerminatedListener.attach(m_processHandler);
+        KillableColoredProcessHandler handler = createHandler(async);
+        handler.setShouldDestroyProcessRecursively(true);
+        ProcessTerminatedListener.attach(handler);
 
-        CapturingProcessAdapter adapter = new CapturingProcessAdapter();
-        m_processHandler.addProcessListener(adapter);
+        handler.addProcessListener(collector);
 
         for (ProcessListener listener : m_listeners)
-            m_processHandler.addProcessListener(listener);
+            handler.addProcessListener(listener);
 
-        m_processHandler.startNotify();
+        if (terminationListener != null)
+            handler.addProcessListener(terminationListener);
 
-        ExecutionModes.SameThreadMode thread_mode =
-            new ExecutionModes.SameThreadMode(m_title);
-        ExecutionHelper.executeExternalProcess(m_project, m_processHandler,
-            thread_mode, m_cmd);
+        m_processHandler = handler;
+        handler.startNotify();
+
+        final ScheduledFuture<?> timeout = scheduleTimeout(handler);
+        if (timeout != null) {
+            handler.addProcessListener(new ProcessAdapter() {
+                @Override
+                public void processTerminated(ProcessEvent event) {
+                    timeout.cancel(false);
+                }
+            });
+        }
 
-        ProcessOutput output = adapter.getOutput();
-        ExternalCommandResult result = new ExternalCommandResult(output);
+        // Canceled while starting.
+        if (m_canceled)
+            terminate(handler);
+    }
+
+    // Create result and pass it to the listeners.
+    @NotNull
+    private ExternalCommandResult finish(@NotNull OutputCollector collector) {
+        if (m_timedOut)
+            collector.setTimeout();
+        else if (m_canceled)
+            collector.setCanceled();
+
+        ExternalCommandResult result = new ExternalCommandResult(
+            collector.getOutput(), collector.isTruncated());
+
+        notifyResult(result);
+        return result;
+    }
 
+    // Pass result to the listeners.
+    void notifyResult(@NotNull ExternalCommandResult result) {
         for (ExternalCommandListener listener : m_listeners)
             listener.consume(result);
     }
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.execution;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorBase;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.Consumer;
+import com.intellij.util.concurrency.PooledThreadExecutor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Run external command over a long list of inputs (usually files).
+ *
+ * Inputs are split into shards, so command line of each shard fits
+ * OS limits, and shards are executed in parallel with a concurrency limit:
+ * <pre>
+ * {@code
+ *    ExternalCommandBatch batch = new ExternalCommandBatch(project, exe, "--check");
+ *    ExternalCommandResult result = batch.execute(files, indicator);
+ * }
+ * </pre>
+ * Optionally inputs of each shard are passed in an argument file
+ * ({@code @argfile}) instead of the command line.
+ *
+ * Shard results are merged in the order of inputs.
+ */
+public class ExternalCommandBatch {
+    protected static final Logger LOG = Logger.getInstance(ExternalCommandBatch.class);
+
+    // Windows limits whole command line to 32767 chars, other systems have
+    // much larger limits, but environment shares the same space.
+    private static final int DEFAULT_MAX_LENGTH = SystemInfo.isWindows ? 30000 : 100000;
+    // Quotes and separator.
+    private static final int ARG_OVERHEAD = 3;
+    // How often caller checks progress indicator.
+    private static final long POLL_INTERVAL_MS = 100;
+
+    @NotNull private final Project m_project;
+    @NotNull private final ExternalCommandTemplate m_template;
+    private int m_maxLength = DEFAULT_MAX_LENGTH;
+    private int m_maxInputs = Integer.MAX_VALUE;
+    private int m_parallelism = Runtime.getRuntime().availableProcessors();
+    @Nullable private String m_argFilePrefix = null;
+    @Nullable private Consumer<ExternalCommand> m_customizer = null;
+    @Nullable private ExecutionScheduler.Priority m_priority = null;
+
+    /**
+     * Construct batch.
+     *
+     * @param project the project for which commands are created.
+     * @param exePath path to external executable.
+     * @param params parameters to pass before the inputs.
+     */
+    public ExternalCommandBatch(@NotNull Project project, @NotNull String exePath,
+                                @NotNull String... params) {
+        this(project, new ExternalCommandTemplate(exePath).withParameters(params));
+    }
+
+    /**
+     * Construct batch.
+     *
+     * @param project the project for which commands are created.
+     * @param template command template, inputs are added after its parameters.
+     */
+    public ExternalCommandBatch(@NotNull Project project,
+                                @NotNull ExternalCommandTemplate template) {
+        m_project = project;
+        m_template = template;
+    }
+
+    /**
+     * Set max command line length of a shard.
+     *
+     * @param length Max length in chars.
+     */
+    public void setMaxLength(int length) {
+        m_maxLength = length;
+    }
+
+    /**
+     * Set max number of inputs in a shard.
+     *
+     * @param count Max number of inputs.
+     */
+    public void setMaxInputs(int count) {
+        m_maxInputs = Math.max(1, count);
+    }
+
+    /**
+     * Set max number of shards executed at the same time.
+     *
+     * @param count Number of parallel commands, by default number of cores.
+     */
+    public void setParallelism(int count) {
+        m_parallelism = Math.max(1, count);
+    }
+
+    /**
+     * Pass inputs in an argument file instead of the command line.
+     *
+     * Argument file contains one input per line, inputs with spaces or
+     * quotes are quoted.
+     *
+     * @param prefix Argument file parameter prefix, usually {@code "@"};
+     *               null disables argument files.
+     */
+    public void setArgFilePrefix(@Nullable String prefix) {
+        m_argFilePrefix = prefix;
+    }
+
+    /**
+     * Set customizer of the shard commands.
+     *
+     * It's called for each created command and may set working directory,
+     * title, output retention or add listeners.
+     *
+     * @param customizer Command customizer.
+     */
+    public void setCustomizer(@Nullable Consumer<ExternalCommand> customizer) {
+        m_customizer = customizer;
+    }
+
+    /**
+     * Run shards via the {@link ExecutionScheduler#getInstance() shared
+     * scheduler} with the given priority.
+     *
+     * Scheduler limits the number of running commands across all projects,
+     * so the actual parallelism may be lower than configured.
+     *
+     * @param priority Shard commands priority or null to run them directly.
+     */
+    public void setPriority(@Nullable ExecutionScheduler.Priority priority) {
+        m_priority = priority;
+    }
+
+    /**
+     * Split inputs into shards.
+     *
+     * Each shard has at least one input even if it exceeds the length limit.
+     *
+     * @param inputs Inputs to split.
+     * @return List of the shards.
+     */
+    @NotNull
+    public List<List<String>> split(@NotNull List<String> inputs) {
+        List<List<String>> shards = new ArrayList<>();
+        int max_inputs = m_maxInputs;
+        // Argument files have no length limit, so just spread inputs
+        // over parallel commands.
+        if (m_argFilePrefix != null && max_inputs == Integer.MAX_VALUE)
+            max_inputs = Math.max(1, (inputs.size() + m_parallelism - 1) / m_parallelism);
+
+        int base = m_template.getExePath().length() + ARG_OVERHEAD;
+        for (String param : m_template.getParameters())
+            base += param.length() + ARG_OVERHEAD;
+
+        List<String> shard = new ArrayList<>();
+        int length = base;
+        for (String input : inputs) {
+            int size = input.length() + ARG_OVERHEAD;
+            boolean too_long = m_argFilePrefix == null && length + size > m_maxLength;
+            if (!shard.isEmpty() && (too_long || shard.size() >= max_inputs)) {
+                shards.add(shard);
+                shard = new ArrayList<>();
+                length = base;
+            }
+            shard.add(input);
+            length += size;
+        }
+        if (!shard.isEmpty())
+            shards.add(shard);
+        return shards;
+    }
+
+    /**
+     * Execute command over inputs and merge results.
+     *
+     * @see #executeShards(List, ProgressIndicator)
+     * @see #merge(List)
+     */
+    @NotNull
+    public ExternalCommandResult execute(@NotNull List<String> inputs,
+                                         @Nullable ProgressIndicator indicator) throws ExecutionException {
+        return merge(executeShards(inputs, indicator));
+    }
+
+    /**
+     * Execute command over inputs.
+     *
+     * Caller thread is blocked until all shards are finished. If one of
+     * the shards fails to start then remaining shards are skipped.
+     *
+     * @param inputs Inputs to process.
+     * @param indicator Progress indicator to check for cancellation or null.
+     * @return Shard results in the order of inputs.
+     * @throws ExecutionException if a command can't be executed.
+     * @throws ProcessCanceledException if indicator is canceled.
+     */
+    @NotNull
+    public List<ExternalCommandResult> executeShards(@NotNull List<String> inputs,
+                                                     @Nullable ProgressIndicator indicator) throws ExecutionException {
+        final List<List<String>> shards = split(inputs);
+        if (shards.isEmpty())
+            return Collections.emptyList();
+
+        final ExternalCommandResult[] results = new ExternalCommandResult[shards.size()];
+        final ProgressIndicator shard_indicator = new ProgressIndicatorBase();
+        final AtomicInteger next = new AtomicInteger();
+        final Exception[] error = new Exception[1];
+        int workers = Math.min(m_parallelism, shards.size());
+        final CountDownLatch done = new CountDownLatch(workers);
+
+        // Each worker takes next shard until all are processed.
+        for (int i = 0; i < workers; ++i) {
+            PooledThreadExecutor.INSTANCE.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ProgressManager.getInstance().runProcess(new Runnable() {
+                            @Override
+                            public void run() {
+                                int index;
+                                while ((index = next.getAndIncrement()) < shards.size()) {
+                                    shard_indicator.checkCanceled();
+                                    try {
+                                        results[index] = executeShard(shards.get(index), shard_indicator);
+                                    }
+                                    catch (ExecutionException | IOException e) {
+                                        synchronized (error) {
+                                            if (error[0] == null)
+                                                error[0] = e;
+                                        }
+                                        shard_indicator.cancel();
+                                    }
+                                }
+                            }
+                        }, shard_indicator);
+                    }
+                    catch (ProcessCanceledException e) {
+                        // Skip remaining shards.
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            while (!done.await(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                if (indicator != null && indicator.isCanceled())
+                    shard_indicator.cancel();
+            }
+        }
+        catch (InterruptedException e) {
+            shard_indicator.cancel();
+            Thread.currentThread().interrupt();
+            throw new ProcessCanceledException();
+        }
+
+        synchronized (error) {
+            if (error[0] instanceof ExecutionException)
+                throw (ExecutionException)error[0];
+            else if (error[0] != null)
+                throw new ExecutionException(error[0]);
+        }
+        if (indicator != null)
+            indicator.checkCanceled();
+
+        return Arrays.asList(results);
+    }
+
+    @NotNull
+    private ExternalCommandResult executeShard(@NotNull List<String> inputs,
+                                               @NotNull ProgressIndicator indicator)
+        throws ExecutionException, IOException {
+        ExternalCommand command = m_template.createCommand(m_project);
+        if (m_customizer != null)
+            m_customizer.consume(command);
+
+        if (m_argFilePrefix == null) {
+            command.addParameters(inputs.toArray(new String[inputs.size()]));
+            return run(command, indicator);
+        }
+
+        File file = FileUtil.createTempFile("args", ".txt", true);
+        try {
+            StringBuilder builder = new StringBuilder();
+            for (String input : inputs)
+                builder.append(quote(input)).append('\n');
+            FileUtil.writeToFile(file, builder.toString().getBytes(StandardCharsets.UTF_8));
+            command.addParameters(m_argFilePrefix + file.getPath());
+            return run(command, indicator);
+        }
+        finally {
+            FileUtil.delete(file);
+        }
+    }
+
+    @NotNull
+    private ExternalCommandResult run(@NotNull ExternalCommand command,
+                                      @NotNull ProgressIndicator indicator) throws ExecutionException {
+        if (m_priority == null)
+            return command.execute();
+
+        Future<ExternalCommandResult> future =
+            ExecutionScheduler.getInstance().submit(command, m_priority);
+        while (true) {
+            if (indicator.isCanceled()) {
+                future.cancel(true);
+                indicator.checkCanceled();
+            }
+            try {
+                return future.get(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                // Continue waiting.
+            }
+            catch (CancellationException e) {
+                throw new ProcessCanceledException();
+            }
+            catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new ProcessCanceledException();
+            }
+            catch (java.util.concurrent.ExecutionException e) {
+                if (e.getCause() instanceof ExecutionException)
+                    throw (ExecutionException)e.getCause();
+                throw new ExecutionException(e.getCause());
+            }
+        }
+    }
+
+    // Quote argument file entry if required.
+    @NotNull
+    static String quote(@NotNull String input) {
+        boolean quote = input.isEmpty();
+        for (int i = 0; i < input.length() && !quote; ++i) {
+            char c = input.charAt(i);
+            quote = Character.isWhitespace(c) || c == '"' || c == '\'' || c == '\\';
+        }
+        if (!quote)
+            return input;
+
+        StringBuilder builder = new StringBuilder("\"");
+        for (int i = 0; i < input.length(); ++i) {
+            char c = input.charAt(i);
+            if (c == '"' || c == '\\')
+                builder.append('\\');
+            builder.append(c);
+        }
+        return builder.append('"').toString();
+    }
+
+    /**
+     * Merge results in the given order.
+     *
+     * Output is concatenated, exit code is the first non-zero one.
+     *
+     * @param results Results to merge.
+     * @return Merged result.
+     */
+    @NotNull
+    public static ExternalCommandResult merge(@NotNull List<ExternalCommandResult> results) {
+        if (results.size() == 1)
+            return results.get(0);
+
+        ProcessOutput output = new ProcessOutput();
+        int exit_code = 0;
+        boolean truncated = false;
+        boolean canceled = false;
+        boolean timeout = false;
+        for (ExternalCommandResult result : results) {
+            output.appendStdout(result.stdout());
+            output.appendStderr(result.stderr());
+            if (exit_code == 0)
+                exit_code = result.exitCode();
+            truncated |= result.isTruncated();
+            canceled |= result.isCanceled();
+            timeout |= result.isTimeout();
+        }
+        output.setExitCode(exit_code);
+        if (timeout)
+            output.setTimeout();
+        else if (canceled)
+            output.setCancelled();
+        return new ExternalCommandResult(output, truncated);
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.execution;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.ludditelabs.intellij.common.bundle.BundleMetadata;
+import com.ludditelabs.intellij.common.bundle.LocalBundle;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Persistent cache of the external command results.
+ *
+ * Cache is opt-in: caller computes the key with
+ * {@link #key(ExternalCommand, String, Collection, Collection)} and runs
+ * the command via {@link #execute(ExternalCommand, String)}. Key includes:
+ * <ul>
+ *     <li>bundle version,</li>
+ *     <li>executable, parameters and working directory,</li>
+ *     <li>values of the given environment variables,</li>
+ *     <li>content hashes of the input files.</li>
+ * </ul>
+ * So it's supposed to be used only for commands which output depends on
+ * these things only.
+ *
+ * Results are stored in the cache directory, one file per key; least
+ * recently used files are removed when total size exceeds the limit.
+ * Access order is kept in memory, file timestamps are used only to order
+ * files left by previous sessions.
+ * Recent results and input file hashes are also kept in memory, so repeated
+ * lookups don't touch the disk and don't rehash unchanged files.
+ */
+public class ExternalCommandCache {
+    protected static final Logger LOG = Logger.getInstance(ExternalCommandCache.class);
+
+    private static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+    private static final int MEMORY_ENTRIES = 256;
+    // Results bigger than this are not kept in memory.
+    private static final int MAX_MEMORY_ENTRY_SIZE = 64 * 1024;
+    private static final String SUFFIX = ".json";
+
+    // Stored result.
+    private static class Entry {
+        int exitCode = 0;
+        String stdout = "";
+        String stderr = "";
+        boolean truncated = false;
+
+        int size() {
+            return stdout.length() + stderr.length();
+        }
+    }
+
+    // Cached file hash, valid while file size and timestamp are the same.
+    private static class FileHash {
+        final long length;
+        final long modified;
+        @NotNull final String hash;
+
+        FileHash(long length, long modified, @NotNull String hash) {
+            this.length = length;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    @NotNull private final File m_dir;
+    private final long m_maxSize;
+    @NotNull private final ConcurrentMap<String, FileHash> m_hashes = new ConcurrentHashMap<>();
+    @NotNull private final Map<String, Entry> m_memory =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MEMORY_ENTRIES;
+            }
+        };
+    // Cache file names in access order, least recently used first.
+    @NotNull private final LinkedHashMap<String, Boolean> m_order =
+        new LinkedHashMap<>(16, 0.75f, true);
+    // Total size of the cache files, -1 if it's not calculated yet.
+    private long m_size = -1;
+
+    /**
+     * Construct cache with default size limit.
+     *
+     * @param dir Cache directory.
+     */
+    public ExternalCommandCache(@NotNull File dir) {
+        this(dir, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Construct cache.
+     *
+     * @param dir Cache directory.
+     * @param maxSize Max total size of the cache files in bytes.
+     */
+    public ExternalCommandCache(@NotNull File dir, long maxSize) {
+        m_dir = dir;
+        m_maxSize = maxSize;
+    }
+
+    /**
+     * Bundle version to use in the cache key.
+     *
+     * @param bundle Local bundle.
+     * @return Version and timestamp of the installed bundle or empty
+     *         string if it's not installed.
+     */
+    @NotNull
+    public static String bundleVersion(@NotNull LocalBundle bundle) {
+        BundleMetadata meta = bundle.getMetadata();
+        return meta == null ? "" : meta.version + "@" + meta.timestamp;
+    }
+
+    /**
+     * Compute cache key of the command.
+     *
+     * Command must be fully configured.
+     *
+     * @param command External command.
+     * @param bundleVersion Bundle version, see {@link #bundleVersion(LocalBundle)}.
+     * @param envNames Names of the environment variables affecting the result.
+     * @param inputs Input files affecting the result.
+     * @return Cache key.
+     * @throws IOException if input file can't be read.
+     */
+    @NotNull
+    public String key(@NotNull ExternalCommand command, @NotNull String bundleVersion,
+                      @NotNull Collection<String> envNames,
+                      @NotNull Collection<File> inputs) throws IOException {
+        GeneralCommandLine cmd = command.commandLine();
+        MessageDigest digest = createDigest();
+        update(digest, bundleVersion);
+        update(digest, cmd.getExePath());
+        for (String param : cmd.getParametersList().getList())
+            update(digest, param);
+        update(digest, cmd.getWorkDirectory() != null ? cmd.getWorkDirectory().getPath() : "");
+
+        List<String> names = new ArrayList<>(envNames);
+        Collections.sort(names);
+        for (String name : names) {
+            update(digest, name);
+            String value = cmd.getEnvironment().get(name);
+            update(digest, value != null ? value : "");
+        }
+
+        for (File input : inputs) {
+            update(digest, input.getPath());
+            update(digest, hashFile(input));
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Get cached result.
+     *
+     * @param key Cache key.
+     * @return Result or null if it's not cached.
+     */
+    @Nullable
+    public ExternalCommandResult get(@NotNull String key) {
+        Entry entry;
+        synchronized (m_memory) {
+            entry = m_memory.get(key);
+        }
+
+        if (entry == null) {
+            entry = load(key);
+            if (entry == null)
+                return null;
+            remember(key, entry);
+        }
+        touch(getFile(key).getName());
+        return toResult(entry);
+    }
+
+    /**
+     * Put result to the cache.
+     *
+     * Canceled and timed out results are not cached.
+     *
+     * @param key Cache key.
+     * @param result Command result.
+     */
+    public void put(@NotNull String key, @NotNull ExternalCommandResult result) {
+        if (result.isCanceled() || result.isTimeout())
+            return;
+
+        Entry entry = new Entry();
+        entry.exitCode = result.exitCode();
+        entry.stdout = result.stdout();
+        entry.stderr = result.stderr();
+        entry.truncated = result.isTruncated();
+        remember(key, entry);
+        save(key, entry);
+    }
+
+    /**
+     * Get cached result or execute the command and cache its result.
+     *
+     * Command is not executed on cache hit, in this case only
+     * {@link ExternalCommandListener#consume} is called for its listeners.
+     *
+     * @param command Command to execute.
+     * @param key Cache key.
+     * @return Command result.
+     * @throws ExecutionException
+     */
+    @NotNull
+    public ExternalCommandResult execute(@NotNull ExternalCommand command,
+                                         @NotNull String key) throws ExecutionException {
+        ExternalCommandResult result = get(key);
+        if (result != null) {
+            command.notifyResult(result);
+            return result;
+        }
+
+        result = command.execute();
+        put(key, result);
+        return result;
+    }
+
+    /**
+     * Remove all cached results.
+     */
+    public synchronized void clear() {
+        synchronized (m_memory) {
+            m_memory.clear();
+        }
+        synchronized (m_order) {
+            m_order.clear();
+        }
+        m_hashes.clear();
+        File[] files = m_dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                FileUtil.delete(file);
+        }
+        m_size = 0;
+    }
+
+    // Move file to the end of the LRU list.
+    private void touch(@NotNull String name) {
+        synchronized (m_order) {
+            m_order.put(name, Boolean.TRUE);
+        }
+    }
+
+    private void remember(@NotNull String key, @NotNull Entry entry) {
+        if (entry.size() > MAX_MEMORY_ENTRY_SIZE)
+            return;
+        synchronized (m_memory) {
+            m_memory.put(key, entry);
+        }
+    }
+
+    @NotNull
+    private static ExternalCommandResult toResult(@NotNull Entry entry) {
+        ProcessOutput output = new ProcessOutput();
+        output.appendStdout(entry.stdout);
+        output.appendStderr(entry.stderr);
+        output.setExitCode(entry.exitCode);
+        return new ExternalCommandResult(output, entry.truncated);
+    }
+
+    @NotNull
+    private File getFile(@NotNull String key) {
+        return new File(m_dir, key + SUFFIX);
+    }
+
+    @Nullable
+    private Entry load(@NotNull String key) {
+        File file = getFile(key);
+        if (!file.isFile())
+            return null;
+
+        try (Reader reader = new InputStreamReader(
+            new FileInputStream(file), StandardCharsets.UTF_8)) {
+            Entry entry = new Gson().fromJson(reader, Entry.class);
+            if (entry == null || entry.stdout == null || entry.stderr == null)
+                return null;
+            // Keep timestamp up to date for the next sessions.
+            file.setLastModified(System.currentTimeMillis());
+            return entry;
+        }
+        catch (IOException | JsonParseException e) {
+            LOG.info("Can't read command cache " + file, e);
+            return null;
+        }
+    }
+
+    private synchronized void save(@NotNull String key, @NotNull Entry entry) {
+        File file = getFile(key);
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            FileUtil.createDirectory(m_dir);
+            long old_size = file.length();
+            try (Writer writer = new OutputStreamWriter(
+                new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                new Gson().toJson(entry, writer);
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+            touch(file.getName());
+
+            if (m_size < 0)
+                m_size = scan();
+            else
+                m_size += file.length() - old_size;
+
+            if (m_size > m_maxSize)
+                evict(file.getName());
+        }
+        catch (IOException e) {
+            LOG.info("Can't save command cache " + file, e);
+            FileUtil.delete(tmp);
+        }
+    }
+
+    // Calculate total size of the cache files and put files which are not
+    // used in this session to the beginning of the LRU list, oldest first.
+    private long scan() {
+        File[] files = m_dir.listFiles();
+        if (files == null)
+            return 0;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        long size = 0;
+        synchronized (m_order) {
+            Set<String> used = new LinkedHashSet<>(m_order.keySet());
+            m_order.clear();
+            for (File file : files) {
+                size += file.length();
+                if (!used.contains(file.getName()))
+                    m_order.put(file.getName(), Boolean.TRUE);
+            }
+            for (String name : used)
+                m_order.put(name, Boolean.TRUE);
+        }
+        return size;
+    }
+
+    // Remove least recently used files until cache is 3/4 of max size,
+    // so eviction doesn't happen on each put. Just saved file is kept.
+    private void evict(@NotNull String saved) {
+        List<String> names;
+        synchronized (m_order) {
+            names = new ArrayList<>(m_order.keySet());
+        }
+
+        long target = m_maxSize / 4 * 3;
+        for (String name : names) {
+            if (m_size <= target)
+                break;
+            if (name.equals(saved))
+                continue;
+
+            File file = new File(m_dir, name);
+            long size = file.length();
+            if (FileUtil.delete(file)) {
+                m_size -= size;
+                synchronized (m_order) {
+                    m_order.remove(name);
+                }
+                if (name.endsWith(SUFFIX)) {
+                    synchronized (m_memory) {
+                        m_memory.remove(name.substring(0, name.length() - SUFFIX.length()));
+                    }
+                }
+            }
+        }
+    }
+
+    // Content hash of the file, it's recalculated only if file is changed.
+    @NotNull
+    private String hashFile(@NotNull File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long modified = file.lastModified();
+        FileHash cached = m_hashes.get(path);
+        if (cached != null && cached.length == length && cached.modified == modified)
+            return cached.hash;
+
+        MessageDigest digest = createDigest();
+        try (InputStream stream = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = stream.read(buffer)) > 0)
+                digest.update(buffer, 0, count);
+        }
+        String hash = toHex(digest.digest());
+        m_hashes.put(path, new FileHash(length, modified, hash));
+        return hash;
+    }
+
+    @NotNull
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Add length prefixed string, so different splits give different hashes.
+    private static void update(@NotNull MessageDigest digest, @NotNull String value) {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte)(data.length >>> 24));
+        digest.update((byte)(data.length >>> 16));
+        digest.update((byte)(data.length >>> 8));
+        digest.update((byte)data.length);
+        digest.update(data);
+    }
+
+    @NotNull
+    private static String toHex(@NotNull byte[] data) {
+        StringBuilder builder = new StringBuilder(data.length * 2);
+        for (byte b : data)
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                .append(Character.forDigit(b & 0xF, 16));
+        return builder.toString();
+    }
+}
@@ -49,6 +49,21 @@ public class ExternalCommandListener implements ProcessListener, Consumer<Extern
 
     }
 
+    /**
+     * Process output line.
+     *
+     * It's called for each line of stdout and stderr as soon as the line
+     * is complete, regardless of the command's output retention.
+     * Very long lines are passed in pieces.
+     *
+     * @param line Line content without line separator.
+     * @param outputType {@link com.intellij.execution.process.ProcessOutputTypes#STDOUT}
+     *                   or {@link com.intellij.execution.process.ProcessOutputTypes#STDERR}.
+     */
+    public void onLine(String line, Key outputType) {
+
+    }
+
     /**
      * Consume external command result.
      *
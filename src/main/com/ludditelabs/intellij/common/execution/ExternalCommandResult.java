@@ -25,6 +25,7 @@ import org.jetbrains.annotations.NotNull;
  */
 public class ExternalCommandResult {
     @NotNull private final ProcessOutput m_output;
+    private final boolean m_truncated;
 
     /**
      * Construct result.
@@ -32,7 +33,18 @@ public class ExternalCommandResult {
      * @param output command line process output.
      */
     public ExternalCommandResult(@NotNull ProcessOutput output) {
+        this(output, false);
+    }
+
+    /**
+     * Construct result.
+     *
+     * @param output command line process output.
+     * @param truncated true if output is not kept completely.
+     */
+    public ExternalCommandResult(@NotNull ProcessOutput output, boolean truncated) {
         m_output = output;
+        m_truncated = truncated;
     }
 
     /** External command process output. */
@@ -69,12 +81,29 @@ public class ExternalCommandResult {
         return m_output.isCancelled();
     }
 
+    /**
+     * Return true if external command is terminated due to timeout.
+     *
+     * Timed out command is not reported as canceled.
+     */
+    public boolean isTimeout() {
+        return m_output.isTimeout();
+    }
+
     /** Return true if at leas one stream has content. */
     public boolean hasContent() {
         return !m_output.getStdout().isEmpty()
             || !m_output.getStderr().isEmpty();
     }
 
+    /**
+     * Return true if output is not complete due to
+     * {@link OutputRetention output retention}.
+     */
+    public boolean isTruncated() {
+        return m_truncated;
+    }
+
     /** Return true is external command finished successfully.*/
     public boolean isSuccess() {
         return exitCode() == 0;
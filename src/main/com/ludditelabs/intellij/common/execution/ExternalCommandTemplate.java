@@ -0,0 +1,223 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.execution;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.util.EnvironmentUtil;
+import com.ludditelabs.intellij.common.Utils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.*;
+
+
+/**
+ * Immutable template of the external command.
+ *
+ * Template resolves executable path and prepares environment once, so
+ * creating command lines from it costs only copying of the prepared data
+ * and adding the arguments:
+ * <pre>
+ * {@code
+ *    ExternalCommandTemplate template = new ExternalCommandTemplate(exe)
+ *        .withParameters("--format", "json");
+ *    ...
+ *    template.createCommand(project, file.getPath()).execute();
+ * }
+ * </pre>
+ * Templates are thread-safe, {@code with*()} methods return new templates.
+ */
+public final class ExternalCommandTemplate {
+    // Environment is the same for the IDE lifetime, so it's prepared once
+    // for all templates.
+    private static class DefaultEnvironment {
+        static final Map<String, String> INSTANCE = createEnvironment();
+    }
+
+    @NotNull private final String m_exePath;
+    @NotNull private final List<String> m_params;
+    @NotNull private final Map<String, String> m_env;
+    @NotNull private final Charset m_charset;
+    @Nullable private final String m_workDir;
+
+    /**
+     * Construct template.
+     *
+     * If executable is not a path then it's searched in the PATH.
+     *
+     * @param exePath path to external executable.
+     */
+    public ExternalCommandTemplate(@NotNull String exePath) {
+        this(resolve(exePath, DefaultEnvironment.INSTANCE), Collections.<String>emptyList(),
+            DefaultEnvironment.INSTANCE, CharsetToolkit.UTF8_CHARSET, null);
+    }
+
+    private ExternalCommandTemplate(@NotNull String exePath, @NotNull List<String> params,
+                                    @NotNull Map<String, String> env,
+                                    @NotNull Charset charset, @Nullable String workDir) {
+        m_exePath = exePath;
+        m_params = params;
+        m_env = env;
+        m_charset = charset;
+        m_workDir = workDir;
+    }
+
+    /**
+     * Environment with configured PATH shared by all commands.
+     *
+     * @return Unmodifiable environment map.
+     */
+    @NotNull
+    static Map<String, String> defaultEnvironment() {
+        return DefaultEnvironment.INSTANCE;
+    }
+
+    @NotNull
+    private static Map<String, String> createEnvironment() {
+        Map<String, String> env = new HashMap<>(EnvironmentUtil.getEnvironmentMap());
+        String path = StringUtil.nullize(EnvironmentUtil.getValue("PATH"), true);
+        if (path != null)
+            env.put("PATH", path);
+        return Collections.unmodifiableMap(env);
+    }
+
+    // Find executable in the PATH if it's just a name.
+    @NotNull
+    private static String resolve(@NotNull String exePath, @NotNull Map<String, String> env) {
+        if (exePath.indexOf('/') >= 0 || exePath.indexOf(File.separatorChar) >= 0)
+            return exePath;
+
+        String path = env.get("PATH");
+        if (path == null)
+            return exePath;
+
+        String name = SystemInfo.isWindows ? Utils.exeFilename(exePath) : exePath;
+        for (String dir : StringUtil.split(path, File.pathSeparator)) {
+            File file = new File(dir, name);
+            if (file.isFile() && file.canExecute())
+                return file.getPath();
+        }
+        return exePath;
+    }
+
+    /** Resolved executable path. */
+    @NotNull
+    public String getExePath() {
+        return m_exePath;
+    }
+
+    /** Template parameters. */
+    @NotNull
+    public List<String> getParameters() {
+        return m_params;
+    }
+
+    /** Command environment. */
+    @NotNull
+    public Map<String, String> getEnvironment() {
+        return m_env;
+    }
+
+    /**
+     * Create template with additional parameters.
+     *
+     * @param params Parameters to add.
+     * @return New template.
+     */
+    @NotNull
+    public ExternalCommandTemplate withParameters(@NotNull String... params) {
+        List<String> list = new ArrayList<>(m_params.size() + params.length);
+        list.addAll(m_params);
+        Collections.addAll(list, params);
+        return new ExternalCommandTemplate(m_exePath, Collections.unmodifiableList(list),
+            m_env, m_charset, m_workDir);
+    }
+
+    /**
+     * Create template with additional environment variable.
+     *
+     * @param name Variable name.
+     * @param value Variable value.
+     * @return New template.
+     */
+    @NotNull
+    public ExternalCommandTemplate withEnvironment(@NotNull String name, @NotNull String value) {
+        Map<String, String> env = new HashMap<>(m_env);
+        env.put(name, value);
+        return new ExternalCommandTemplate(m_exePath, m_params,
+            Collections.unmodifiableMap(env), m_charset, m_workDir);
+    }
+
+    /**
+     * Create template with given working directory.
+     *
+     * @param path Working directory or null.
+     * @return New template.
+     */
+    @NotNull
+    public ExternalCommandTemplate withWorkingDirectory(@Nullable String path) {
+        return new ExternalCommandTemplate(m_exePath, m_params, m_env, m_charset, path);
+    }
+
+    /**
+     * Create template with given streams charset.
+     *
+     * @param charset Charset, UTF-8 by default.
+     * @return New template.
+     */
+    @NotNull
+    public ExternalCommandTemplate withCharset(@NotNull Charset charset) {
+        return new ExternalCommandTemplate(m_exePath, m_params, m_env, charset, m_workDir);
+    }
+
+    /**
+     * Create command line.
+     *
+     * @param args Arguments to add after template parameters.
+     * @return New command line.
+     */
+    @NotNull
+    public GeneralCommandLine createCommandLine(@NotNull String... args) {
+        GeneralCommandLine cmd = new GeneralCommandLine();
+        cmd.setExePath(m_exePath);
+        cmd.withCharset(m_charset);
+        cmd.withEnvironment(m_env);
+        if (m_workDir != null)
+            cmd.withWorkDirectory(m_workDir);
+        cmd.addParameters(m_params);
+        cmd.addParameters(args);
+        return cmd;
+    }
+
+    /**
+     * Create external command.
+     *
+     * @param project the project for which the command is created.
+     * @param args Arguments to add after template parameters.
+     * @return New command.
+     */
+    @NotNull
+    public ExternalCommand createCommand(@NotNull Project project, @NotNull String... args) {
+        return new ExternalCommand(project, createCommandLine(args));
+    }
+}
@@ -0,0 +1,558 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.execution;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.util.concurrency.JobScheduler;
+import com.intellij.util.concurrency.PooledThreadExecutor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Long-lived external process which serves requests.
+ *
+ * Instead of spawning a process per invocation (see {@link ExternalCommand})
+ * the executable is started once and receives requests over its standard
+ * input. Requests and responses are framed the same way as in the
+ * Language Server Protocol:
+ * <pre>
+ * {@code
+ *    Content-Length: <number of bytes>\r\n
+ *    \r\n
+ *    <UTF-8 encoded body>
+ * }
+ * </pre>
+ * Body format is up to the executable, the daemon must write exactly one
+ * response per request, in the order of requests. Standard error output is
+ * not a part of the protocol and goes to the log.
+ *
+ * Features:
+ * <ul>
+ *     <li>Process is started on the first request and restarted if it dies,
+ *         failed request is retried once in the new process.</li>
+ *     <li>Optional health check request is sent periodically, process
+ *         which fails to answer is stopped.</li>
+ *     <li>Process is stopped after idle timeout and started again on
+ *         the next request.</li>
+ * </ul>
+ *
+ * Requests are serialized: each daemon handles one request at a time.
+ */
+public class ExternalDaemon implements Disposable {
+    protected static final Logger LOG = Logger.getInstance(ExternalDaemon.class);
+
+    private static final String CONTENT_LENGTH = "Content-Length:";
+    private static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+    private static final long DEFAULT_REQUEST_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    private static final long HEALTH_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    private static final long HEALTH_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    // Time to wait for the process exit after closing its input.
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
+    // Time to wait for the process exit after failed request.
+    private static final long EXIT_TIMEOUT = 200;
+    // How often waiting requests check progress indicator.
+    private static final long POLL_INTERVAL_MS = 100;
+    // Max size of the response body, protects from garbage in the stdout.
+    private static final int MAX_BODY_SIZE = 256 * 1024 * 1024;
+
+    // Running process with its response queue.
+    private static class Instance {
+        @NotNull final Process process;
+        @NotNull final OutputStream input;
+        // Received response bodies or IOException on end of stream.
+        @NotNull final BlockingQueue<Object> responses = new LinkedBlockingQueue<>();
+
+        Instance(@NotNull Process process) {
+            this.process = process;
+            this.input = new BufferedOutputStream(process.getOutputStream());
+        }
+    }
+
+    @NotNull private final GeneralCommandLine m_cmd;
+    @NotNull private final ReentrantLock m_lock = new ReentrantLock();
+    @Nullable private volatile Instance m_instance = null;
+    @Nullable private ScheduledFuture<?> m_monitor = null;
+    @Nullable private String m_healthRequest = null;
+    private long m_idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private long m_requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    private volatile long m_lastRequest = 0;
+    private volatile int m_startCount = 0;
+    private volatile int m_requestCount = 0;
+    private volatile boolean m_disposed = false;
+
+    /**
+     * Construct daemon.
+     *
+     * Process is not started until the first request.
+     *
+     * @param exePath path to external executable.
+     * @param params parameters to start executable in the daemon mode.
+     */
+    public ExternalDaemon(@NotNull String exePath, @NotNull String... params) {
+        m_cmd = ExternalCommand.createCmd(exePath);
+        m_cmd.addParameters(params);
+    }
+
+    /** Command line which is used to start the daemon. */
+    @NotNull
+    public GeneralCommandLine commandLine() {
+        return m_cmd;
+    }
+
+    /**
+     * Set request to send periodically to check if daemon is responsive.
+     *
+     * @param request Request body or null to disable health checks.
+     */
+    public void setHealthCheck(@Nullable String request) {
+        m_healthRequest = request;
+    }
+
+    /**
+     * Set time after which idle daemon process is stopped.
+     *
+     * @param timeout Timeout in milliseconds, 0 disables idle shutdown.
+     */
+    public void setIdleTimeout(long timeout) {
+        m_idleTimeout = timeout;
+    }
+
+    /**
+     * Set default request timeout.
+     *
+     * @param timeout Timeout in milliseconds.
+     */
+    public void setRequestTimeout(long timeout) {
+        m_requestTimeout = timeout;
+    }
+
+    /** Default request timeout in milliseconds. */
+    public long getRequestTimeout() {
+        return m_requestTimeout;
+    }
+
+    /** Return true if daemon process is running. */
+    public boolean isRunning() {
+        Instance instance = m_instance;
+        return instance != null && instance.process.isAlive();
+    }
+
+    /** Return true if daemon is processing a request. */
+    public boolean isBusy() {
+        return m_lock.isLocked();
+    }
+
+    /** How many times the process was started. */
+    public int getStartCount() {
+        return m_startCount;
+    }
+
+    /** Number of requests handled by the current process. */
+    public int getRequestCount() {
+        return m_requestCount;
+    }
+
+    /** Running process or null. */
+    @Nullable
+    public Process getProcess() {
+        Instance instance = m_instance;
+        return instance != null ? instance.process : null;
+    }
+
+    /**
+     * Send request with default timeout.
+     *
+     * @see #request(String, long, ProgressIndicator)
+     */
+    @NotNull
+    public String request(@NotNull String body) throws IOException {
+        return request(body, m_requestTimeout, null);
+    }
+
+    /**
+     * Send request and wait for the response.
+     *
+     * If daemon is not running it will be started. If process dies while
+     * handling the request then it's restarted and the request is sent
+     * again once.
+     *
+     * If request is timed out or canceled then the process is stopped,
+     * since it's not possible to match its late response.
+     *
+     * @param body Request body.
+     * @param timeout Request timeout in milliseconds.
+     * @param indicator Progress indicator to check for cancellation or null.
+     * @return Response body.
+     * @throws IOException if daemon can't be started, it's died or
+     *                     request is timed out.
+     */
+    @NotNull
+    public String request(@NotNull String body, long timeout,
+                          @Nullable ProgressIndicator indicator) throws IOException {
+        m_lock.lock();
+        try {
+            for (int attempt = 0; ; ++attempt) {
+                Instance instance = ensureStarted();
+                boolean done = false;
+                try {
+                    String response = call(instance, body, timeout, indicator);
+                    done = true;
+                    ++m_requestCount;
+                    return response;
+                }
+                catch (IOException e) {
+                    if (attempt > 0 || !isDied(instance, e))
+                        throw e;
+                    LOG.info("Daemon process is died, restarting: " + e.getMessage());
+                }
+                finally {
+                    // Response may still arrive after timeout or cancellation.
+                    if (!done)
+                        stop(instance);
+                }
+            }
+        }
+        finally {
+            m_lastRequest = System.currentTimeMillis();
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Start daemon process in advance if it's not running yet.
+     *
+     * @throws IOException if daemon can't be started.
+     */
+    public void start() throws IOException {
+        m_lock.lock();
+        try {
+            ensureStarted();
+            m_lastRequest = System.currentTimeMillis();
+        }
+        finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Stop daemon process.
+     *
+     * Process will be started again on the next request.
+     */
+    public void shutdown() {
+        m_lock.lock();
+        try {
+            Instance instance = m_instance;
+            if (instance != null)
+                stop(instance);
+        }
+        finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Stop daemon process and disallow further requests.
+     */
+    @Override
+    public void dispose() {
+        m_disposed = true;
+        shutdown();
+    }
+
+    // Must be called under the lock.
+    @NotNull
+    private Instance ensureStarted() throws IOException {
+        if (m_disposed)
+            throw new IOException("Daemon is disposed.");
+
+        Instance instance = m_instance;
+        if (instance != null) {
+            if (instance.process.isAlive())
+                return instance;
+            stop(instance);
+        }
+
+        LOG.debug("Starting daemon: ", m_cmd.getCommandLineString());
+        Process process;
+        try {
+            process = m_cmd.createProcess();
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Can't start daemon: " + e.getMessage(), e);
+        }
+
+        instance = new Instance(process);
+        startReader(instance);
+        startErrorReader(instance);
+        m_instance = instance;
+        m_requestCount = 0;
+        ++m_startCount;
+        startMonitor();
+        return instance;
+    }
+
+    // Must be called under the lock.
+    private void stop(@NotNull Instance instance) {
+        if (m_instance == instance)
+            m_instance = null;
+
+        // Daemon is supposed to exit on end of input.
+        try {
+            instance.input.close();
+        }
+        catch (IOException e) {
+            LOG.debug(e);
+        }
+
+        try {
+            if (!instance.process.waitFor(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS))
+                instance.process.destroy();
+        }
+        catch (InterruptedException e) {
+            instance.process.destroy();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Return true if request is failed because the process is died.
+    // Closed output means the process is exiting, but it may be still alive
+    // for a moment, so other errors wait for the exit a bit.
+    private static boolean isDied(@NotNull Instance instance, @NotNull IOException e) {
+        if (e instanceof InterruptedIOException)
+            return !instance.process.isAlive();
+
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof EOFException)
+                return true;
+        }
+
+        try {
+            return instance.process.waitFor(EXIT_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @NotNull
+    private static String call(@NotNull Instance instance, @NotNull String body,
+                               long timeout, @Nullable ProgressIndicator indicator) throws IOException {
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+        String header = CONTENT_LENGTH + " " + data.length + "\r\n\r\n";
+        instance.input.write(header.getBytes(StandardCharsets.US_ASCII));
+        instance.input.write(data);
+        instance.input.flush();
+
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            if (indicator != null)
+                indicator.checkCanceled();
+
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                throw new InterruptedIOException("Daemon request is timed out.");
+
+            Object response;
+            try {
+                response = instance.responses.poll(
+                    Math.min(left, POLL_INTERVAL_MS), TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Daemon request is interrupted.");
+            }
+
+            if (response instanceof IOException)
+                throw new IOException(((IOException)response).getMessage(), (IOException)response);
+            else if (response != null)
+                return (String)response;
+        }
+    }
+
+    // Read response frames from stdout into the queue.
+    private static void startReader(@NotNull final Instance instance) {
+        PooledThreadExecutor.INSTANCE.execute(new Runnable() {
+            @Override
+            public void run() {
+                InputStream stream = new BufferedInputStream(instance.process.getInputStream());
+                try {
+                    while (true)
+                        instance.responses.add(readFrame(stream));
+                }
+                catch (IOException e) {
+                    instance.responses.add(e);
+                }
+                finally {
+                    try {
+                        stream.close();
+                    }
+                    catch (IOException e) {
+                        LOG.debug(e);
+                    }
+                }
+            }
+        });
+    }
+
+    // Forward stderr to the log, it also prevents process from blocking
+    // on the full pipe.
+    private static void startErrorReader(@NotNull final Instance instance) {
+        PooledThreadExecutor.INSTANCE.execute(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    instance.process.getErrorStream(), StandardCharsets.UTF_8));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null)
+                        LOG.debug("[daemon] ", line);
+                }
+                catch (IOException e) {
+                    LOG.debug(e);
+                }
+                finally {
+                    try {
+                        reader.close();
+                    }
+                    catch (IOException e) {
+                        LOG.debug(e);
+                    }
+                }
+            }
+        });
+    }
+
+    @NotNull
+    static String readFrame(@NotNull InputStream stream) throws IOException {
+        int length = -1;
+        String line;
+        while (!(line = readHeaderLine(stream)).isEmpty()) {
+            if (line.regionMatches(true, 0, CONTENT_LENGTH, 0, CONTENT_LENGTH.length())) {
+                try {
+                    length = Integer.parseInt(line.substring(CONTENT_LENGTH.length()).trim());
+                }
+                catch (NumberFormatException e) {
+                    throw new IOException("Invalid daemon response header: " + line);
+                }
+            }
+        }
+
+        if (length < 0 || length > MAX_BODY_SIZE)
+            throw new IOException("Invalid daemon response length: " + length);
+
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int count = stream.read(data, offset, length - offset);
+            if (count < 0)
+                throw new EOFException("Daemon output is closed.");
+            offset += count;
+        }
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    // Read header line terminated by \r\n or \n.
+    @NotNull
+    private static String readHeaderLine(@NotNull InputStream stream) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (true) {
+            int c = stream.read();
+            if (c < 0)
+                throw new EOFException("Daemon output is closed.");
+            else if (c == '\n')
+                break;
+            else if (c != '\r')
+                builder.append((char)c);
+        }
+        return builder.toString();
+    }
+
+    // Periodic health and idle checks.
+
+    private synchronized void startMonitor() {
+        if (m_monitor != null)
+            return;
+
+        m_monitor = JobScheduler.getScheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                monitor();
+            }
+        }, HEALTH_INTERVAL, HEALTH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopMonitor() {
+        if (m_monitor != null) {
+            m_monitor.cancel(false);
+            m_monitor = null;
+        }
+    }
+
+    private void monitor() {
+        // Skip check if request is in progress.
+        if (!m_lock.tryLock())
+            return;
+
+        try {
+            Instance instance = m_instance;
+            if (instance == null) {
+                stopMonitor();
+                return;
+            }
+
+            long idle = System.currentTimeMillis() - m_lastRequest;
+            if (!instance.process.isAlive()) {
+                LOG.info("Daemon process is exited");
+                stop(instance);
+            }
+            else if (m_idleTimeout > 0 && idle >= m_idleTimeout) {
+                LOG.debug("Stopping idle daemon");
+                stop(instance);
+            }
+            else if (m_healthRequest != null) {
+                try {
+                    call(instance, m_healthRequest, HEALTH_TIMEOUT, null);
+                }
+                catch (IOException e) {
+                    LOG.info("Daemon health check is failed: " + e.getMessage());
+                    stop(instance);
+                }
+            }
+
+            if (m_instance == null)
+                stopMonitor();
+        }
+        finally {
+            m_lock.unlock();
+        }
+    }
+}
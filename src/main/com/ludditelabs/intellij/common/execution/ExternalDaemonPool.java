@@ -0,0 +1,331 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.execution;
+
+import com.intellij.execution.process.OSProcessUtil;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.SystemInfo;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Pool of the warm {@link ExternalDaemon daemons} running the same executable.
+ *
+ * Pool allows to process many requests in parallel, for example to run
+ * the bundle on many files:
+ * <ul>
+ *     <li>Pool has fixed number of workers, by default one per CPU core.</li>
+ *     <li>Request is dispatched to the least loaded worker, running workers
+ *         are preferred over stopped ones.</li>
+ *     <li>If all workers are busy then caller waits for a free one
+ *         (backpressure) instead of spawning extra processes.</li>
+ *     <li>Worker process is recycled (restarted) after given number of
+ *         requests or if its memory grows too much. Memory is tracked on
+ *         Linux only.</li>
+ * </ul>
+ */
+public class ExternalDaemonPool implements Disposable {
+    protected static final Logger LOG = Logger.getInstance(ExternalDaemonPool.class);
+
+    private static final int DEFAULT_MAX_REQUESTS = 1000;
+    // Process is recycled if its memory is this times bigger than after start.
+    private static final double DEFAULT_MAX_MEMORY_GROWTH = 3;
+    // How often (in requests) worker memory is checked.
+    private static final int MEMORY_CHECK_INTERVAL = 50;
+    // How often waiting requests check progress indicator.
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private static class Worker {
+        @NotNull final ExternalDaemon daemon;
+        @NotNull final AtomicInteger pending = new AtomicInteger();
+        // Process start count and its memory after the first request.
+        int startCount = 0;
+        long baseMemory = 0;
+
+        Worker(@NotNull ExternalDaemon daemon) {
+            this.daemon = daemon;
+        }
+    }
+
+    @NotNull private final List<Worker> m_workers;
+    @NotNull private final Semaphore m_permits;
+    private volatile int m_maxRequests = DEFAULT_MAX_REQUESTS;
+    private volatile double m_maxMemoryGrowth = DEFAULT_MAX_MEMORY_GROWTH;
+    private volatile long m_waitTimeout = Long.MAX_VALUE;
+
+    /**
+     * Construct pool with one worker per CPU core.
+     *
+     * @param exePath path to external executable.
+     * @param params parameters to start executable in the daemon mode.
+     */
+    public ExternalDaemonPool(@NotNull String exePath, @NotNull String... params) {
+        this(Runtime.getRuntime().availableProcessors(), exePath, params);
+    }
+
+    /**
+     * Construct pool.
+     *
+     * Processes are not started until requests or {@link #warmUp()}.
+     *
+     * @param size Number of workers.
+     * @param exePath path to external executable.
+     * @param params parameters to start executable in the daemon mode.
+     */
+    public ExternalDaemonPool(int size, @NotNull String exePath, @NotNull String... params) {
+        size = Math.max(1, size);
+        List<Worker> workers = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i)
+            workers.add(new Worker(new ExternalDaemon(exePath, params)));
+        m_workers = Collections.unmodifiableList(workers);
+        m_permits = new Semaphore(size, true);
+    }
+
+    /** Pool daemons. */
+    @NotNull
+    public List<ExternalDaemon> getDaemons() {
+        List<ExternalDaemon> result = new ArrayList<>(m_workers.size());
+        for (Worker worker : m_workers)
+            result.add(worker.daemon);
+        return result;
+    }
+
+    /** Number of workers. */
+    public int getSize() {
+        return m_workers.size();
+    }
+
+    /** Number of workers processing requests. */
+    public int getActiveCount() {
+        return m_workers.size() - m_permits.availablePermits();
+    }
+
+    /** Approximate number of requests waiting for a free worker. */
+    public int getQueueLength() {
+        return m_permits.getQueueLength();
+    }
+
+    /**
+     * Set number of requests after which worker process is restarted.
+     *
+     * @param count Max number of requests, 0 disables recycling.
+     */
+    public void setMaxRequests(int count) {
+        m_maxRequests = count;
+    }
+
+    /**
+     * Set allowed worker memory growth.
+     *
+     * @param factor Worker process is restarted if its memory becomes
+     *               bigger than memory after the first request multiplied
+     *               by this factor. 0 disables the check.
+     */
+    public void setMaxMemoryGrowth(double factor) {
+        m_maxMemoryGrowth = factor;
+    }
+
+    /**
+     * Set max time to wait for a free worker.
+     *
+     * @param timeout Timeout in milliseconds.
+     */
+    public void setWaitTimeout(long timeout) {
+        m_waitTimeout = timeout;
+    }
+
+    /**
+     * Start all worker processes in advance.
+     *
+     * @throws IOException if a daemon can't be started.
+     */
+    public void warmUp() throws IOException {
+        for (Worker worker : m_workers)
+            worker.daemon.start();
+    }
+
+    /**
+     * Send request with default timeout to the least loaded worker.
+     *
+     * @see #request(String, long, ProgressIndicator)
+     */
+    @NotNull
+    public String request(@NotNull String body) throws IOException {
+        return request(body, -1, null);
+    }
+
+    /**
+     * Send request to the least loaded worker.
+     *
+     * If all workers are busy then the caller is blocked until one of
+     * them is free.
+     *
+     * @param body Request body.
+     * @param timeout Request timeout in milliseconds, negative value means
+     *                default daemon timeout.
+     * @param indicator Progress indicator to check for cancellation or null.
+     * @return Response body.
+     * @throws IOException on daemon errors or if there is no free worker
+     *                     within wait timeout.
+     */
+    @NotNull
+    public String request(@NotNull String body, long timeout,
+                          @Nullable ProgressIndicator indicator) throws IOException {
+        acquire(indicator);
+        Worker worker = select();
+        try {
+            String response = worker.daemon.request(body,
+                timeout < 0 ? worker.daemon.getRequestTimeout() : timeout, indicator);
+            recycleIfNeeded(worker);
+            return response;
+        }
+        finally {
+            worker.pending.decrementAndGet();
+            m_permits.release();
+        }
+    }
+
+    /**
+     * Stop all worker processes.
+     */
+    public void shutdown() {
+        for (Worker worker : m_workers)
+            worker.daemon.shutdown();
+    }
+
+    @Override
+    public void dispose() {
+        for (Worker worker : m_workers)
+            worker.daemon.dispose();
+    }
+
+    private void acquire(@Nullable ProgressIndicator indicator) throws IOException {
+        long deadline = m_waitTimeout == Long.MAX_VALUE
+            ? Long.MAX_VALUE : System.currentTimeMillis() + m_waitTimeout;
+        try {
+            while (!m_permits.tryAcquire(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                if (indicator != null)
+                    indicator.checkCanceled();
+                if (System.currentTimeMillis() >= deadline)
+                    throw new IOException("All daemons are busy.");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Waiting for daemon is interrupted.");
+        }
+    }
+
+    // Select least loaded worker and add pending request to it.
+    // Running processes are preferred to avoid startup cost.
+    @NotNull
+    private synchronized Worker select() {
+        Worker best = null;
+        int best_load = Integer.MAX_VALUE;
+        for (Worker worker : m_workers) {
+            int load = worker.pending.get() * 2 + (worker.daemon.isRunning() ? 0 : 1);
+            if (load < best_load) {
+                best = worker;
+                best_load = load;
+            }
+        }
+        assert best != null;
+        best.pending.incrementAndGet();
+        return best;
+    }
+
+    private void recycleIfNeeded(@NotNull Worker worker) {
+        ExternalDaemon daemon = worker.daemon;
+        int requests = daemon.getRequestCount();
+
+        if (m_maxRequests > 0 && requests >= m_maxRequests) {
+            LOG.debug("Recycling daemon after ", String.valueOf(requests), " requests");
+            daemon.shutdown();
+            return;
+        }
+
+        if (m_maxMemoryGrowth <= 0 || !SystemInfo.isLinux)
+            return;
+
+        synchronized (worker) {
+            if (worker.startCount != daemon.getStartCount()) {
+                worker.startCount = daemon.getStartCount();
+                worker.baseMemory = getResidentMemory(daemon.getProcess());
+            }
+            else if (worker.baseMemory > 0 && requests % MEMORY_CHECK_INTERVAL == 0) {
+                long memory = getResidentMemory(daemon.getProcess());
+                if (memory > worker.baseMemory * m_maxMemoryGrowth) {
+                    LOG.debug("Recycling daemon, memory is grown from ",
+                        String.valueOf(worker.baseMemory), " to ", String.valueOf(memory));
+                    daemon.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get process resident memory size.
+     *
+     * @param process Process.
+     * @return Memory size in bytes or 0 if it's unknown.
+     */
+    static long getResidentMemory(@Nullable Process process) {
+        if (process == null || !SystemInfo.isLinux)
+            return 0;
+
+        BufferedReader reader = null;
+        try {
+            int pid = OSProcessUtil.getProcessID(process);
+            reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream("/proc/" + pid + "/status"), StandardCharsets.US_ASCII));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // VmRSS:     1234 kB
+                if (line.startsWith("VmRSS:")) {
+                    String[] parts = line.substring(6).trim().split("\\s+");
+                    return Long.parseLong(parts[0]) * 1024;
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            LOG.debug(e);
+        }
+        finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                }
+                catch (IOException e) {
+                    LOG.debug(e);
+                }
+            }
+        }
+        return 0;
+    }
+}
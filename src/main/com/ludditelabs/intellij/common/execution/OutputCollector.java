@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.execution;
+
+import com.intellij.execution.process.ProcessAdapter;
+import com.intellij.execution.process.ProcessEvent;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.util.Key;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+
+/**
+ * Process listener which splits output into lines, passes them to
+ * the listeners and keeps output according to the retention.
+ *
+ * Memory use doesn't depend on output size unless retention is
+ * {@link OutputRetention#FULL}.
+ */
+class OutputCollector extends ProcessAdapter {
+    // Longer lines are passed in pieces.
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    // Output of a single stream.
+    private class Stream {
+        @NotNull final Key type;
+        @NotNull final StringBuilder partial = new StringBuilder();
+        @NotNull final StringBuilder full = new StringBuilder();
+        @NotNull final ArrayDeque<String> tail = new ArrayDeque<>();
+
+        Stream(@NotNull Key type) {
+            this.type = type;
+        }
+
+        void append(@NotNull String text) {
+            int start = 0;
+            for (int i = 0; i < text.length(); ++i) {
+                if (text.charAt(i) == '\n') {
+                    partial.append(text, start, i + 1);
+                    flush();
+                    start = i + 1;
+                }
+                else if (partial.length() + i - start >= MAX_LINE_LENGTH) {
+                    partial.append(text, start, i);
+                    flush();
+                    start = i;
+                }
+            }
+            partial.append(text, start, text.length());
+        }
+
+        // Pass pending line to the listeners and keep it.
+        void flush() {
+            if (partial.length() == 0)
+                return;
+
+            String line = partial.toString();
+            partial.setLength(0);
+
+            int end = line.length();
+            if (end > 0 && line.charAt(end - 1) == '\n')
+                --end;
+            if (end > 0 && line.charAt(end - 1) == '\r')
+                --end;
+            String content = line.substring(0, end);
+            for (ExternalCommandListener listener : m_listeners)
+                listener.onLine(content, type);
+
+            if (m_retention == OutputRetention.FULL) {
+                full.append(line);
+            }
+            else if (m_retention == OutputRetention.TAIL && m_tailSize > 0) {
+                tail.addLast(line);
+                if (tail.size() > m_tailSize) {
+                    tail.removeFirst();
+                    m_truncated = true;
+                }
+            }
+            else {
+                m_truncated = true;
+            }
+        }
+
+        @NotNull
+        String content() {
+            if (m_retention == OutputRetention.FULL)
+                return full.toString();
+
+            StringBuilder builder = new StringBuilder();
+            for (String line : tail)
+                builder.append(line);
+            return builder.toString();
+        }
+    }
+
+    @NotNull private final OutputRetention m_retention;
+    private final int m_tailSize;
+    @NotNull private final Collection<ExternalCommandListener> m_listeners;
+    @NotNull private final Stream m_stdout = new Stream(ProcessOutputTypes.STDOUT);
+    @NotNull private final Stream m_stderr = new Stream(ProcessOutputTypes.STDERR);
+    private int m_exitCode = -1;
+    private boolean m_truncated = false;
+    private boolean m_canceled = false;
+    private boolean m_timeout = false;
+
+    /**
+     * Construct collector.
+     *
+     * @param retention Output retention.
+     * @param tailSize Number of lines to keep for {@link OutputRetention#TAIL}.
+     * @param listeners Listeners to pass output lines to.
+     */
+    OutputCollector(@NotNull OutputRetention retention, int tailSize,
+                    @NotNull Collection<ExternalCommandListener> listeners) {
+        m_retention = retention;
+        m_tailSize = tailSize;
+        m_listeners = listeners;
+    }
+
+    @Override
+    public synchronized void onTextAvailable(ProcessEvent event, Key outputType) {
+        if (outputType == ProcessOutputTypes.STDERR)
+            m_stderr.append(event.getText());
+        else if (outputType != ProcessOutputTypes.SYSTEM)
+            m_stdout.append(event.getText());
+    }
+
+    @Override
+    public synchronized void processTerminated(ProcessEvent event) {
+        m_stdout.flush();
+        m_stderr.flush();
+        m_exitCode = event.getExitCode();
+    }
+
+    /** Mark output as canceled. */
+    public synchronized void setCanceled() {
+        m_canceled = true;
+    }
+
+    /** Mark output as timed out. */
+    public synchronized void setTimeout() {
+        m_timeout = true;
+    }
+
+    /** Return true if some output lines are not kept. */
+    public synchronized boolean isTruncated() {
+        return m_truncated;
+    }
+
+    /** Kept output. */
+    @NotNull
+    public synchronized ProcessOutput getOutput() {
+        ProcessOutput output = new ProcessOutput();
+        output.appendStdout(m_stdout.content());
+        output.appendStderr(m_stderr.content());
+        output.setExitCode(m_exitCode);
+        if (m_timeout)
+            output.setTimeout();
+        else if (m_canceled)
+            output.setCancelled();
+        return output;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.execution;
+
+
+/**
+ * How much of the external command output is kept for the
+ * {@link ExternalCommandResult}.
+ *
+ * Listeners get all output lines regardless of the retention
+ * (see {@link ExternalCommandListener#onLine}).
+ */
+public enum OutputRetention {
+    /** Output is not kept, result has empty stdout and stderr. */
+    NONE,
+
+    /** Only last N lines of each stream are kept. */
+    TAIL,
+
+    /** Whole output is kept. */
+    FULL
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common;
+
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+import com.intellij.util.ThrowableRunnable;
+
+/**
+ * Base class of the performance tests.
+ *
+ * They are slow and depend on the machine load, so they are skipped
+ * by default. To run them set {@code -Dludditelabs.performance.tests=true}.
+ */
+public abstract class PerformanceTestCase extends LightPlatformCodeInsightFixtureTestCase {
+    public static final String PROPERTY = "ludditelabs.performance.tests";
+
+    // Rounds to warm up JIT before measuring.
+    private static final int WARMUP_ROUNDS = 3;
+
+    @Override
+    protected boolean shouldRunTest() {
+        return Boolean.getBoolean(PROPERTY) && super.shouldRunTest();
+    }
+
+    /**
+     * Run the code several times and return the best time in milliseconds.
+     *
+     * @param rounds Number of measured rounds.
+     * @param runnable Code to measure.
+     */
+    protected static long measure(int rounds,
+                                  ThrowableRunnable<? extends Throwable> runnable) throws Throwable {
+        for (int i = 0; i < WARMUP_ROUNDS; ++i)
+            runnable.run();
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; ++i) {
+            long start = System.nanoTime();
+            runnable.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1000000;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common;
+
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.text.VersionComparatorUtil;
+
+import java.util.*;
+
+/**
+ * Version index benchmark, see {@link PerformanceTestCase}.
+ */
+public class VersionIndexPerformanceTests extends PerformanceTestCase {
+    // Test: index lookups are faster than the linear scan
+    // for metadata with thousands of versions.
+    public void testManyVersions() throws Throwable {
+        Random random = new Random(42);
+        final List<String> versions = VersionIndexTests.generateVersions(5000, random);
+        final List<String> queries = VersionIndexTests.generateVersions(2000, random);
+
+        final List<String> legacy = new ArrayList<>(versions);
+        Collections.sort(legacy, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return VersionComparatorUtil.compare(o1, o2);
+            }
+        });
+
+        long legacy_time = measure(5, new ThrowableRunnable<RuntimeException>() {
+            @Override
+            public void run() {
+                for (String query : queries)
+                    VersionIndexTests.linearFloor(legacy, query);
+            }
+        });
+
+        long index_time = measure(5, new ThrowableRunnable<RuntimeException>() {
+            @Override
+            public void run() {
+                VersionIndex index = new VersionIndex(versions);
+                for (String query : queries)
+                    index.floor(query);
+            }
+        });
+
+        System.out.println(String.format(
+            "%d versions, %d lookups: linear %d ms, index %d ms",
+            versions.size(), queries.size(), legacy_time, index_time));
+        assertTrue("Index is slower than linear scan", index_time <= legacy_time);
+    }
+}
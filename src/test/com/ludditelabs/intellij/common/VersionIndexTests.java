@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common;
+
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+import com.intellij.util.text.VersionComparatorUtil;
+
+import java.util.*;
+
+public class VersionIndexTests extends LightPlatformCodeInsightFixtureTestCase {
+    // Reference implementation: linear scan with VersionComparatorUtil.
+    static String linearFloor(List<String> versions, String version) {
+        String result = null;
+        for (String v : versions) {
+            if (VersionComparatorUtil.compare(version, v) < 0)
+                break;
+            result = v;
+        }
+        return result;
+    }
+
+    static List<String> generateVersions(int count, Random random) {
+        Set<String> versions = new HashSet<>();
+        while (versions.size() < count) {
+            versions.add(random.nextInt(20) + "." + random.nextInt(50)
+                + "." + random.nextInt(100));
+        }
+        return new ArrayList<>(versions);
+    }
+
+    // Test: floor, ceiling and range queries.
+    public void testQueries() throws Throwable {
+        VersionIndex index = new VersionIndex(
+            Arrays.asList("0.2.0", "0.0.3", "0.0.2", "1.10", "1.9"));
+
+        assertOrderedEquals(index.getVersions(),
+            "0.0.2", "0.0.3", "0.2.0", "1.9", "1.10");
+
+        assertEquals("0.0.2", index.floor("0.0.2"));
+        assertEquals("0.0.3", index.floor("0.1"));
+        assertEquals("1.10", index.floor("2.0"));
+        assertNull(index.floor("0.0.1"));
+
+        assertEquals("0.2.0", index.ceiling("0.1"));
+        assertEquals("1.9", index.ceiling("1.9"));
+        assertNull(index.ceiling("1.11"));
+
+        assertOrderedEquals(index.range("0.0.3", "1.9"), "0.0.3", "0.2.0", "1.9");
+        assertOrderedEquals(index.range(null, "0.0.2"), "0.0.2");
+        assertEmpty(index.range("2", null));
+    }
+
+    // Test: ordering is the same as VersionComparatorUtil.
+    public void testCompare() throws Throwable {
+        String[] versions = {
+            "1", "1.0", "1.0.0", "01.2", "1.2", "1.2-beta", "1.2.rc1",
+            "1.10", "1.9.9", "2.0-SNAPSHOT", "2.0", "", "1234567890.1"
+        };
+
+        for (String v1 : versions) {
+            for (String v2 : versions) {
+                assertEquals(v1 + " vs " + v2,
+                    Integer.signum(VersionComparatorUtil.compare(v1, v2)),
+                    Integer.signum(VersionIndex.compare(v1, v2)));
+            }
+        }
+    }
+
+    // Test: index gives the same results as the linear scan
+    // for metadata with thousands of versions.
+    public void testManyVersions() throws Throwable {
+        Random random = new Random(42);
+        List<String> versions = generateVersions(5000, random);
+        List<String> queries = generateVersions(2000, random);
+
+        List<String> legacy = new ArrayList<>(versions);
+        Collections.sort(legacy, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return VersionComparatorUtil.compare(o1, o2);
+            }
+        });
+        List<String> expected = new ArrayList<>();
+        for (String query : queries)
+            expected.add(linearFloor(legacy, query));
+
+        VersionIndex index = new VersionIndex(versions);
+        List<String> actual = new ArrayList<>();
+        for (String query : queries)
+            actual.add(index.floor(query));
+
+        assertOrderedEquals(index.getVersions(), legacy);
+        assertOrderedEquals(actual, expected);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.bundle;
+
+import com.intellij.util.ThrowableRunnable;
+import com.ludditelabs.intellij.common.PerformanceTestCase;
+
+import java.io.IOException;
+
+/**
+ * Metadata parser benchmark, see {@link PerformanceTestCase}.
+ */
+public class MetadataParserPerformanceTests extends PerformanceTestCase {
+    // Test: streaming parser is faster than the tree one
+    // for metadata with thousands of versions.
+    public void testManyVersions() throws Throwable {
+        final byte[] content = MetadataParserTests.generateMetadata(5000);
+        final String[] queries = {"0.0.5", "1.50", "2.99.9", "4.99.9", "100"};
+
+        long tree_time = measure(20, new ThrowableRunnable<RuntimeException>() {
+            @Override
+            public void run() {
+                for (String query : queries)
+                    MetadataParserTests.treeParse(content, query);
+            }
+        });
+
+        long stream_time = measure(20, new ThrowableRunnable<IOException>() {
+            @Override
+            public void run() throws IOException {
+                for (String query : queries)
+                    MetadataParser.parse(content, query, null);
+            }
+        });
+
+        System.out.println(String.format(
+            "%d bytes, %d parses: tree %d ms, streaming %d ms",
+            content.length, queries.length, tree_time, stream_time));
+        assertTrue("Streaming parser is slower than tree one", stream_time <= tree_time);
+    }
+}
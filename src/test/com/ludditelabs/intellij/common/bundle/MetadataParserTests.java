@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.bundle;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+import com.ludditelabs.intellij.common.VersionIndex;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+
+public class MetadataParserTests extends LightPlatformCodeInsightFixtureTestCase {
+    private static String entry(String version) {
+        return "{\"dist\": \"bundle-" + version + ".zip\", \"message\": \"Release "
+            + version + "\", \"version\": \"" + version + "\", "
+            + "\"timestamp\": \"2018-01-01T00:00:00\", "
+            + "\"changes\": [\"Change 1\", \"Change 2\", \"Change 3\"], "
+            + "\"components\": [{\"name\": \"core\", \"include\": [\"bin/**\"]}]}";
+    }
+
+    static byte[] generateMetadata(int count) {
+        StringBuilder builder = new StringBuilder("{\"name\": \"test\", \"versions\": {");
+        for (int i = 0; i < count; ++i) {
+            if (i > 0)
+                builder.append(", ");
+            String version = (i / 1000) + "." + (i / 10 % 100) + "." + (i % 10);
+            builder.append('"').append(version).append("\": ").append(entry(version));
+        }
+        builder.append("}}");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Reference implementation: full JSON tree.
+    static String treeParse(byte[] content, String pluginVersion) {
+        JsonObject json = new Gson().fromJson(
+            new String(content, StandardCharsets.UTF_8), JsonObject.class);
+        json = json.getAsJsonObject("versions");
+        ArrayList<String> versions = new ArrayList<>();
+        for (Map.Entry<String, JsonElement> entry : json.entrySet())
+            versions.add(entry.getKey());
+        String match = new VersionIndex(versions).floor(pluginVersion);
+        return json.getAsJsonObject(match).get("version").getAsString();
+    }
+
+    // Test: closest version is selected and its entry is materialized.
+    public void testParse() throws Throwable {
+        byte[] content = ("{\"versions\": {\"0.1.0\": " + entry("1.0")
+            + ", \"0.2.0\": " + entry("2.0") + ", \"0.10.0\": " + entry("3.0")
+            + "}}").getBytes(StandardCharsets.UTF_8);
+
+        BundleMetadata meta = MetadataParser.parse(content, "0.9", null);
+        assertEquals("2.0", meta.version);
+        assertEquals("0.2.0", meta.pluginVersion);
+        assertEquals("bundle-2.0.zip", meta.dist);
+        assertOrderedEquals(meta.changes, "Change 1", "Change 2", "Change 3");
+        assertTrue(meta.hasComponents());
+        assertNotNull(meta.getComponent("core"));
+
+        assertEquals("3.0", MetadataParser.parse(content, "1.0", null).version);
+    }
+
+    // Test: metadata nested in the bundle index.
+    public void testIndex() throws Throwable {
+        byte[] content = ("{\"bundles\": {"
+            + "\"tool\": {\"linux/64bit\": {\"versions\": {\"0.1\": " + entry("1.0") + "}},"
+            + " \"mac/64bit\": {\"versions\": {\"0.1\": " + entry("2.0") + "}}},"
+            + "\"other\": {\"mac/64bit\": {\"versions\": {\"0.1\": " + entry("3.0") + "}}}"
+            + "}}").getBytes(StandardCharsets.UTF_8);
+
+        assertEquals("2.0", MetadataParser.parse(content,
+            new String[] {"bundles", "tool", "mac/64bit"}, "0.5", null).version);
+        assertEquals("3.0", MetadataParser.parse(content,
+            new String[] {"bundles", "other", "mac/64bit"}, "0.5", null).version);
+
+        try {
+            MetadataParser.parse(content,
+                new String[] {"bundles", "other", "linux/64bit"}, "0.5", null);
+            fail("Expected IOException for missing platform");
+        }
+        catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    // Test: errors are reported as I/O errors.
+    public void testErrors() throws Throwable {
+        String[] bad = {
+            "{\"versions\": {\"1.0\": " + entry("1.0") + "}}",
+            "{\"name\": \"test\"}",
+            "{\"versions\": [1, 2]}",
+            "{\"versions\": {\"0.1\": {\"dist\": \"x\"}}}",
+            "{\"versions\": {\"0.1\": ",
+            "[]"
+        };
+        for (String content : bad) {
+            try {
+                MetadataParser.parse(content.getBytes(StandardCharsets.UTF_8), "0.5", null);
+                fail("Expected IOException for " + content);
+            }
+            catch (IOException e) {
+                // Expected.
+            }
+        }
+    }
+
+    // Test: streaming parser gives the same results as the tree one
+    // for metadata with thousands of versions.
+    public void testManyVersions() throws Throwable {
+        byte[] content = generateMetadata(5000);
+        String[] queries = {"0.0.5", "1.50", "2.99.9", "4.99.9", "100"};
+
+        ArrayList<String> expected = new ArrayList<>();
+        for (String query : queries)
+            expected.add(treeParse(content, query));
+
+        ArrayList<String> actual = new ArrayList<>();
+        for (String query : queries)
+            actual.add(MetadataParser.parse(content, query, null).version);
+
+        assertOrderedEquals(actual, expected);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.execution;
+
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.project.Project;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+import com.ludditelabs.intellij.common.execution.ExecutionScheduler.Priority;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public class ExecutionSchedulerTests extends LightPlatformCodeInsightFixtureTestCase {
+    // Scheduler which doesn't run commands, they are finished by the test.
+    private static class TestScheduler extends ExecutionScheduler {
+        final List<String> started = new ArrayList<>();
+        final Map<String, CompletableFuture<ExternalCommandResult>> running = new HashMap<>();
+
+        TestScheduler(int maxRunning) {
+            super(maxRunning);
+        }
+
+        @Override
+        CompletableFuture<ExternalCommandResult> execute(ExternalCommand command) {
+            CompletableFuture<ExternalCommandResult> future = new CompletableFuture<>();
+            started.add(command.title());
+            running.put(command.title(), future);
+            return future;
+        }
+
+        void finish(String title) {
+            ProcessOutput output = new ProcessOutput();
+            output.setExitCode(0);
+            running.remove(title).complete(new ExternalCommandResult(output));
+        }
+    }
+
+    // Project stub, scheduler uses only identity and disposed state.
+    private static Project project(final String name) {
+        return (Project) Proxy.newProxyInstance(Project.class.getClassLoader(),
+            new Class[] {Project.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "isDisposed":
+                            return false;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "getName":
+                        case "toString":
+                            return name;
+                        default:
+                            return null;
+                    }
+                }
+            });
+    }
+
+    private static ExternalCommand command(Project project, String title) {
+        ExternalCommand command = new ExternalCommand(project, "tool");
+        command.setTitle(title);
+        return command;
+    }
+
+    // Test: projects take turns, each project's commands keep order.
+    public void testRoundRobin() throws Throwable {
+        Project a = project("a");
+        Project b = project("b");
+        TestScheduler scheduler = new TestScheduler(2);
+
+        scheduler.submit(command(a, "a1"), Priority.BACKGROUND);
+        scheduler.submit(command(a, "a2"), Priority.BACKGROUND);
+        scheduler.submit(command(a, "a3"), Priority.BACKGROUND);
+        scheduler.submit(command(b, "b1"), Priority.BACKGROUND);
+        scheduler.submit(command(b, "b2"), Priority.BACKGROUND);
+        assertOrderedEquals(scheduler.started, "a1");
+        assertEquals(4, scheduler.getQueueDepth());
+
+        scheduler.finish("a1");
+        scheduler.finish("a2");
+        scheduler.finish("b1");
+        scheduler.finish("a3");
+        assertOrderedEquals(scheduler.started, "a1", "a2", "b1", "a3", "b2");
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(1, scheduler.getRunningCount());
+    }
+
+    // Test: background commands don't take the reserved slot and
+    // interactive commands are started first.
+    public void testInteractiveReserve() throws Throwable {
+        Project a = project("a");
+        TestScheduler scheduler = new TestScheduler(2);
+
+        scheduler.submit(command(a, "bg1"), Priority.BACKGROUND);
+        scheduler.submit(command(a, "bg2"), Priority.BACKGROUND);
+        assertOrderedEquals(scheduler.started, "bg1");
+
+        scheduler.submit(command(a, "i1"), Priority.INTERACTIVE);
+        scheduler.submit(command(a, "i2"), Priority.INTERACTIVE);
+        assertOrderedEquals(scheduler.started, "bg1", "i1");
+        assertEquals(1, scheduler.getQueueDepth(Priority.INTERACTIVE));
+        assertEquals(1, scheduler.getQueueDepth(Priority.BACKGROUND));
+
+        scheduler.finish("bg1");
+        assertOrderedEquals(scheduler.started, "bg1", "i1", "i2");
+
+        // Running interactive command takes the only background slot.
+        scheduler.finish("i1");
+        assertOrderedEquals(scheduler.started, "bg1", "i1", "i2");
+
+        scheduler.finish("i2");
+        assertOrderedEquals(scheduler.started, "bg1", "i1", "i2", "bg2");
+    }
+
+    // Test: with a single slot background command may take it,
+    // interactive command is started next.
+    public void testSingleSlot() throws Throwable {
+        Project a = project("a");
+        TestScheduler scheduler = new TestScheduler(1);
+
+        scheduler.submit(command(a, "bg1"), Priority.BACKGROUND);
+        scheduler.submit(command(a, "bg2"), Priority.BACKGROUND);
+        scheduler.submit(command(a, "i1"), Priority.INTERACTIVE);
+        assertOrderedEquals(scheduler.started, "bg1");
+
+        scheduler.finish("bg1");
+        assertOrderedEquals(scheduler.started, "bg1", "i1");
+
+        scheduler.finish("i1");
+        assertOrderedEquals(scheduler.started, "bg1", "i1", "bg2");
+    }
+
+    // Test: canceled commands are removed from the queue and never started.
+    public void testCancelQueued() throws Throwable {
+        Project a = project("a");
+        TestScheduler scheduler = new TestScheduler(2);
+
+        scheduler.submit(command(a, "bg1"), Priority.BACKGROUND);
+        ExternalCommand bg2 = command(a, "bg2");
+        CompletableFuture<ExternalCommandResult> future =
+            scheduler.submit(bg2, Priority.BACKGROUND);
+        scheduler.submit(command(a, "bg3"), Priority.BACKGROUND);
+        assertEquals(2, scheduler.getQueueDepth());
+
+        assertTrue(future.cancel(false));
+        assertEquals(1, scheduler.getQueueDepth());
+        assertTrue(bg2.isCanceled());
+
+        scheduler.finish("bg1");
+        assertOrderedEquals(scheduler.started, "bg1", "bg3");
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+}
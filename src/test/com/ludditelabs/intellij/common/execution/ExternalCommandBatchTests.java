@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.execution;
+
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ExternalCommandBatchTests extends LightPlatformCodeInsightFixtureTestCase {
+    private static List<String> inputs(int count) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < count; ++i)
+            result.add("file" + i + ".txt");
+        return result;
+    }
+
+    // Test: inputs are split by command line length and count in order.
+    public void testSplit() throws Throwable {
+        ExternalCommandBatch batch = new ExternalCommandBatch(getProject(), "tool", "--check");
+        List<String> files = inputs(100);
+
+        List<List<String>> shards = batch.split(files);
+        assertEquals(1, shards.size());
+
+        // Executable and parameter take 17 chars, each input 12 or 13.
+        batch.setMaxLength(17 + 13 * 10);
+        shards = batch.split(files);
+        List<String> joined = new ArrayList<>();
+        for (List<String> shard : shards) {
+            assertTrue(shard.size() <= 11);
+            joined.addAll(shard);
+        }
+        assertOrderedEquals(joined, files);
+
+        batch.setMaxInputs(7);
+        for (List<String> shard : batch.split(files))
+            assertTrue(shard.size() <= 7);
+
+        // Too long input still gets its own shard.
+        batch.setMaxLength(1);
+        assertEquals(100, batch.split(files).size());
+        assertEmpty(batch.split(new ArrayList<String>()));
+    }
+
+    // Test: argument files spread inputs over parallel commands.
+    public void testSplitArgFile() throws Throwable {
+        ExternalCommandBatch batch = new ExternalCommandBatch(getProject(), "tool");
+        batch.setArgFilePrefix("@");
+        batch.setParallelism(4);
+        batch.setMaxLength(1);
+
+        List<List<String>> shards = batch.split(inputs(10));
+        assertEquals(4, shards.size());
+        assertEquals(Arrays.asList("file9.txt"), shards.get(3));
+    }
+
+    // Test: argument file entries quoting.
+    public void testQuote() throws Throwable {
+        assertEquals("a.txt", ExternalCommandBatch.quote("a.txt"));
+        assertEquals("\"a b.txt\"", ExternalCommandBatch.quote("a b.txt"));
+        assertEquals("\"c:\\\\a\\\"b\"", ExternalCommandBatch.quote("c:\\a\"b"));
+        assertEquals("\"\"", ExternalCommandBatch.quote(""));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.execution;
+
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ExternalCommandCacheTests extends LightPlatformCodeInsightFixtureTestCase {
+    private static ExternalCommandResult result(String stdout, int exitCode) {
+        ProcessOutput output = new ProcessOutput();
+        output.appendStdout(stdout);
+        output.setExitCode(exitCode);
+        return new ExternalCommandResult(output);
+    }
+
+    // Test: results are stored on disk and keys depend on inputs.
+    public void testCache() throws Throwable {
+        File dir = FileUtil.createTempDirectory("cache", null);
+        File input = FileUtil.createTempFile(dir, "input", ".txt", true);
+        FileUtil.writeToFile(input, "one");
+
+        ExternalCommand command = new ExternalCommand(getProject(), "tool");
+        command.addParameters("--check");
+        ExternalCommandCache cache = new ExternalCommandCache(new File(dir, "cache"));
+        String key = cache.key(command, "1.0", Collections.singletonList("PATH"),
+            Collections.singletonList(input));
+
+        assertNull(cache.get(key));
+        cache.put(key, result("output", 1));
+
+        ExternalCommandResult cached = new ExternalCommandCache(new File(dir, "cache")).get(key);
+        assertNotNull(cached);
+        assertEquals("output", cached.stdout());
+        assertEquals(1, cached.exitCode());
+
+        assertFalse(key.equals(cache.key(command, "1.1", Collections.<String>emptyList(),
+            Collections.singletonList(input))));
+
+        FileUtil.writeToFile(input, "two");
+        input.setLastModified(input.lastModified() + 2000);
+        assertFalse(key.equals(cache.key(command, "1.0", Collections.singletonList("PATH"),
+            Collections.singletonList(input))));
+    }
+
+    // Test: least recently used results are evicted.
+    public void testEviction() throws Throwable {
+        File dir = FileUtil.createTempDirectory("cache", null);
+        ExternalCommandCache cache = new ExternalCommandCache(dir, 1000);
+        char[] data = new char[300];
+        Arrays.fill(data, 'x');
+
+        for (int i = 0; i < 10; ++i)
+            cache.put("key" + i, result(new String(data), 0));
+
+        File[] files = dir.listFiles();
+        assertNotNull(files);
+        assertTrue(files.length < 10);
+        assertTrue(new File(dir, "key9.json").isFile());
+    }
+
+    // Test: results used from memory are not evicted.
+    public void testEvictionAccessOrder() throws Throwable {
+        File dir = FileUtil.createTempDirectory("cache", null);
+        ExternalCommandCache cache = new ExternalCommandCache(dir, 1000);
+        char[] data = new char[300];
+        Arrays.fill(data, 'x');
+
+        cache.put("key0", result(new String(data), 0));
+        cache.put("key1", result(new String(data), 0));
+        assertNotNull(cache.get("key0"));
+        cache.put("key2", result(new String(data), 0));
+
+        assertTrue(new File(dir, "key0.json").isFile());
+        assertFalse(new File(dir, "key1.json").isFile());
+        assertTrue(new File(dir, "key2.json").isFile());
+    }
+
+    // Test: files of the previous sessions are evicted oldest first.
+    public void testEvictionPreviousSession() throws Throwable {
+        File dir = FileUtil.createTempDirectory("cache", null);
+        ExternalCommandCache cache = new ExternalCommandCache(dir, 1000);
+        char[] data = new char[300];
+        Arrays.fill(data, 'x');
+
+        cache.put("key0", result(new String(data), 0));
+        cache.put("key1", result(new String(data), 0));
+        long now = System.currentTimeMillis();
+        assertTrue(new File(dir, "key0.json").setLastModified(now - 10000));
+        assertTrue(new File(dir, "key1.json").setLastModified(now - 20000));
+
+        new ExternalCommandCache(dir, 1000).put("key2", result(new String(data), 0));
+
+        assertTrue(new File(dir, "key0.json").isFile());
+        assertFalse(new File(dir, "key1.json").isFile());
+        assertTrue(new File(dir, "key2.json").isFile());
+    }
+}
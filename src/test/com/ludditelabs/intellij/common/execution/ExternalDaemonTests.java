@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.execution;
+
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class ExternalDaemonTests extends LightPlatformCodeInsightFixtureTestCase {
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertBadFrame(String content) {
+        try {
+            ExternalDaemon.readFrame(stream(content));
+            fail("Expected IOException for " + content);
+        }
+        catch (EOFException e) {
+            fail("Unexpected EOF for " + content);
+        }
+        catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private static void assertEof(String content) {
+        try {
+            ExternalDaemon.readFrame(stream(content));
+            fail("Expected EOFException for " + content);
+        }
+        catch (EOFException e) {
+            // Expected.
+        }
+        catch (IOException e) {
+            fail("Unexpected error for " + content + ": " + e.getMessage());
+        }
+    }
+
+    // Test: frames are read one by one, extra headers are skipped.
+    public void testReadFrame() throws Throwable {
+        InputStream stream = stream(
+            "Content-Length: 5\r\n\r\nhello"
+            + "content-length:2\r\nContent-Type: text/plain\r\n\r\n{}"
+            + "Content-Length: 0\n\n"
+            + "Content-Length: 4\r\n\r\n\u00e9\u00e9");
+
+        assertEquals("hello", ExternalDaemon.readFrame(stream));
+        assertEquals("{}", ExternalDaemon.readFrame(stream));
+        assertEquals("", ExternalDaemon.readFrame(stream));
+        assertEquals("\u00e9\u00e9", ExternalDaemon.readFrame(stream));
+    }
+
+    // Test: invalid length is an error.
+    public void testBadLength() throws Throwable {
+        assertBadFrame("Content-Length: abc\r\n\r\n");
+        assertBadFrame("Content-Length: -1\r\n\r\n");
+        assertBadFrame("Content-Length: 999999999999\r\n\r\n");
+        assertBadFrame("Content-Type: text/plain\r\n\r\nhello");
+    }
+
+    // Test: end of output is reported as EOF.
+    public void testEof() throws Throwable {
+        assertEof("");
+        assertEof("Content-Length: 5\r\n");
+        assertEof("Content-Length: 5\r\n\r\nhel");
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2018 Luddite Labs Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ludditelabs.intellij.common.execution;
+
+import com.intellij.execution.process.NopProcessHandler;
+import com.intellij.execution.process.ProcessEvent;
+import com.intellij.execution.process.ProcessHandler;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class OutputCollectorTests extends LightPlatformCodeInsightFixtureTestCase {
+    private final ProcessHandler m_handler = new NopProcessHandler();
+
+    // Listener which records passed lines.
+    private static class LineRecorder extends ExternalCommandListener {
+        final List<String> stdout = new ArrayList<>();
+        final List<String> stderr = new ArrayList<>();
+
+        @Override
+        public void onLine(String line, Key outputType) {
+            if (outputType == ProcessOutputTypes.STDERR)
+                stderr.add(line);
+            else
+                stdout.add(line);
+        }
+    }
+
+    private static OutputCollector collector(OutputRetention retention, int tailSize,
+                                             LineRecorder recorder) {
+        return new OutputCollector(retention, tailSize,
+            Collections.<ExternalCommandListener>singletonList(recorder));
+    }
+
+    private void text(OutputCollector collector, String text, Key outputType) {
+        collector.onTextAvailable(new ProcessEvent(m_handler, text), outputType);
+    }
+
+    private void terminate(OutputCollector collector, int exitCode) {
+        collector.processTerminated(new ProcessEvent(m_handler, exitCode));
+    }
+
+    // Test: lines split across chunks are joined.
+    public void testChunks() throws Throwable {
+        LineRecorder recorder = new LineRecorder();
+        OutputCollector collector = collector(OutputRetention.FULL, 0, recorder);
+
+        text(collector, "ab", ProcessOutputTypes.STDOUT);
+        assertEmpty(recorder.stdout);
+        text(collector, "c\nde", ProcessOutputTypes.STDOUT);
+        assertOrderedEquals(recorder.stdout, "abc");
+        text(collector, "f\n\ng", ProcessOutputTypes.STDOUT);
+        text(collector, "err", ProcessOutputTypes.STDERR);
+        text(collector, "system\n", ProcessOutputTypes.SYSTEM);
+        terminate(collector, 3);
+
+        assertOrderedEquals(recorder.stdout, "abc", "def", "", "g");
+        assertOrderedEquals(recorder.stderr, "err");
+
+        ProcessOutput output = collector.getOutput();
+        assertEquals("abc\ndef\n\ng", output.getStdout());
+        assertEquals("err", output.getStderr());
+        assertEquals(3, output.getExitCode());
+        assertFalse(collector.isTruncated());
+    }
+
+    // Test: line separator is stripped from lines but kept in the output.
+    public void testCrLf() throws Throwable {
+        LineRecorder recorder = new LineRecorder();
+        OutputCollector collector = collector(OutputRetention.FULL, 0, recorder);
+
+        text(collector, "one\r\ntwo\r", ProcessOutputTypes.STDOUT);
+        text(collector, "\nthree\r\n", ProcessOutputTypes.STDOUT);
+        terminate(collector, 0);
+
+        assertOrderedEquals(recorder.stdout, "one", "two", "three");
+        assertEquals("one\r\ntwo\r\nthree\r\n", collector.getOutput().getStdout());
+    }
+
+    // Test: long lines are passed in pieces, also if they come in chunks.
+    public void testLongLine() throws Throwable {
+        int max = OutputCollector.MAX_LINE_LENGTH;
+        String line = StringUtil.repeatSymbol('x', 2 * max + 10);
+
+        LineRecorder recorder = new LineRecorder();
+        OutputCollector collector = collector(OutputRetention.FULL, 0, recorder);
+        text(collector, line + "\n", ProcessOutputTypes.STDOUT);
+        terminate(collector, 0);
+
+        assertEquals(3, recorder.stdout.size());
+        assertEquals(max, recorder.stdout.get(0).length());
+        assertEquals(max, recorder.stdout.get(1).length());
+        assertEquals(10, recorder.stdout.get(2).length());
+        assertEquals(line + "\n", collector.getOutput().getStdout());
+
+        recorder = new LineRecorder();
+        collector = collector(OutputRetention.FULL, 0, recorder);
+        for (int i = 0; i < line.length(); i += 1000) {
+            text(collector, line.substring(i, Math.min(i + 1000, line.length())),
+                ProcessOutputTypes.STDOUT);
+        }
+        assertEquals(2, recorder.stdout.size());
+        terminate(collector, 0);
+
+        assertEquals(3, recorder.stdout.size());
+        assertEquals(max, recorder.stdout.get(0).length());
+        assertEquals(max, recorder.stdout.get(1).length());
+        assertEquals(10, recorder.stdout.get(2).length());
+        assertEquals(line, collector.getOutput().getStdout());
+    }
+
+    // Test: only last lines are kept, all lines are passed to the listeners.
+    public void testTail() throws Throwable {
+        LineRecorder recorder = new LineRecorder();
+        OutputCollector collector = collector(OutputRetention.TAIL, 2, recorder);
+
+        text(collector, "a\nb\n", ProcessOutputTypes.STDOUT);
+        text(collector, "e1\n", ProcessOutputTypes.STDERR);
+        assertFalse(collector.isTruncated());
+
+        text(collector, "c\nd", ProcessOutputTypes.STDOUT);
+        terminate(collector, 0);
+
+        assertOrderedEquals(recorder.stdout, "a", "b", "c", "d");
+        assertEquals("c\nd", collector.getOutput().getStdout());
+        assertEquals("e1\n", collector.getOutput().getStderr());
+        assertTrue(collector.isTruncated());
+    }
+
+    // Test: nothing is kept, output is truncated only if there are lines.
+    public void testNone() throws Throwable {
+        LineRecorder recorder = new LineRecorder();
+        OutputCollector collector = collector(OutputRetention.NONE, 0, recorder);
+        terminate(collector, 0);
+        assertFalse(collector.isTruncated());
+
+        collector = collector(OutputRetention.NONE, 0, recorder);
+        text(collector, "a\nb\n", ProcessOutputTypes.STDOUT);
+        terminate(collector, 1);
+
+        assertOrderedEquals(recorder.stdout, "a", "b");
+        ProcessOutput output = collector.getOutput();
+        assertEquals("", output.getStdout());
+        assertEquals(1, output.getExitCode());
+        assertTrue(collector.isTruncated());
+    }
+
+    // Test: canceled and timed out flags are passed to the output.
+    public void testFlags() throws Throwable {
+        OutputCollector collector = collector(OutputRetention.FULL, 0, new LineRecorder());
+        collector.setCanceled();
+        assertTrue(collector.getOutput().isCancelled());
+
+        collector.setTimeout();
+        ProcessOutput output = collector.getOutput();
+        assertTrue(output.isTimeout());
+        assertFalse(output.isCancelled());
+    }
+}